@@ -0,0 +1,241 @@
+package transaction.client;
+
+import transaction.comm.Message;
+import transaction.comm.MessageConnection;
+import transaction.comm.MessageTypes;
+import transaction.exception.TransactionAbortedException;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class [AsyncTransactionServerProxy] runs any number of transactions over one MULTIPLEXED connection. Requests
+ * don't wait for their reply: every request is tagged with a fresh request ID and answered with a future, which
+ * a reader thread completes when the reply with that request ID arrives. Requests can be pipelined, i.e. sent
+ * before the replies to earlier requests arrived, and can be issued from any thread.
+ *
+ * @author surya
+ */
+public class AsyncTransactionServerProxy implements MessageTypes {
+
+    private final MessageConnection dbConnection;
+
+    // requests waiting for their reply, by request ID
+    private final Map<Integer, CompletableFuture<Message>> pendingRequests = new ConcurrentHashMap<>();
+
+    // source of request IDs, 0 is reserved for untagged messages
+    private final AtomicInteger requestIdCounter = new AtomicInteger(0);
+
+    // set by the reader thread once the connection is gone, before it fails the pending requests
+    private volatile boolean closed = false;
+
+    /**
+     * custom constructor, connects to the Transaction Server and starts the reader thread
+     *
+     * @param host IP address of the Transaction Server
+     * @param port port of the Transaction Server
+     *
+     * @throws IOException if the connection can't be opened
+     */
+    AsyncTransactionServerProxy(String host, int port) throws IOException {
+        dbConnection = MessageConnection.connect(new Socket(host, port), MessageConnection.MULTIPLEXED_PROTOCOL);
+
+        Thread reader = new Thread(this::readReplies, "AsyncTransactionServerProxy-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * opens a transaction
+     *
+     * @return future of the transaction ID
+     */
+    public CompletableFuture<Integer> openTransaction() {
+        return send(OPEN_TRANSACTION, null, 0).thenApply(reply -> (Integer) reply.getContent());
+    }
+
+    /**
+     * Requests a transaction to be closed
+     *
+     * @param transactionID ID of the transaction
+     *
+     * @return future of the status, i.e. either TRANSACTION_COMMITTED OR TRANSACTION_ABORTED
+     */
+    public CompletableFuture<Integer> closeTransaction(int transactionID) {
+        return send(CLOSE_TRANSACTION, null, transactionID).thenApply(Message::getType);
+    }
+
+    /**
+     * Reading a value from account
+     *
+     * @param transactionID ID of the transaction
+     * @param accountNumber account number to read
+     *
+     * @return future of the balance of the account, completed exceptionally with a TransactionAbortedException
+     * if the transaction is aborted
+     */
+    public CompletableFuture<Integer> read(int transactionID, int accountNumber) {
+        return send(READ_REQUEST, accountNumber, transactionID).thenCompose(AsyncTransactionServerProxy::balanceOf);
+    }
+
+    /**
+     * Writes the amount to account
+     *
+     * @param transactionID ID of the transaction
+     * @param accountNumber account number to write
+     * @param amount amount to be written
+     *
+     * @return future of the previous balance of the account, completed exceptionally with a
+     * TransactionAbortedException if the transaction is aborted
+     */
+    public CompletableFuture<Integer> write(int transactionID, int accountNumber, int amount) {
+        return send(WRITE_REQUEST, new Object[]{accountNumber, amount}, transactionID)
+                .thenCompose(AsyncTransactionServerProxy::balanceOf);
+    }
+
+    /**
+     * Reading the values of several accounts with one request
+     *
+     * @param transactionID ID of the transaction
+     * @param accountNumbers account numbers to read
+     *
+     * @return future of the balances, in the order of the account numbers, completed exceptionally with a
+     * TransactionAbortedException if the transaction is aborted
+     */
+    public CompletableFuture<int[]> read(int transactionID, int[] accountNumbers) {
+        return send(MULTI_READ_REQUEST, accountNumbers, transactionID).thenCompose(AsyncTransactionServerProxy::balancesOf);
+    }
+
+    /**
+     * Writes amounts to several accounts with one request
+     *
+     * @param transactionID ID of the transaction
+     * @param accountNumbers account numbers to write
+     * @param amounts amounts to be written, in the order of the account numbers
+     *
+     * @return future of the previous balances, completed exceptionally with a TransactionAbortedException if the
+     * transaction is aborted
+     */
+    public CompletableFuture<int[]> write(int transactionID, int[] accountNumbers, int[] amounts) {
+        return send(MULTI_WRITE_REQUEST, new Object[]{accountNumbers, amounts}, transactionID)
+                .thenCompose(AsyncTransactionServerProxy::balancesOf);
+    }
+
+    /**
+     * Asks the server for the total balance of all accounts, outside of any transaction
+     *
+     * @return future of the total balance
+     */
+    public CompletableFuture<Long> getTotalBalance() {
+        return send(TOTAL_BALANCE_REQUEST, null, 0).thenApply(reply -> (Long) reply.getContent());
+    }
+
+    /**
+     * Asks the server for a snapshot of its metrics, outside of any transaction
+     *
+     * @return future of the metrics by name
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Map<String, Long>> getStats() {
+        return send(STATS_REQUEST, null, 0).thenApply(reply -> (Map<String, Long>) reply.getContent());
+    }
+
+    /**
+     * Closes the connection, requests still waiting for their reply fail
+     */
+    public void close() {
+        try {
+            dbConnection.close();
+        } catch (IOException ex) {
+            System.out.println("[AsyncTransactionServerProxy.close] Error occurred when closing the connection");
+        }
+    }
+
+    /**
+     * Sends a tagged request
+     *
+     * @param type type of the request
+     * @param content content of the request
+     * @param transactionID ID of the transaction the request belongs to, 0 for OPEN_TRANSACTION
+     *
+     * @return future of the reply
+     */
+    private CompletableFuture<Message> send(int type, Object content, int transactionID) {
+        int requestID = requestIdCounter.incrementAndGet();
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+
+        pendingRequests.put(requestID, reply);
+
+        // the reader either sees the request when it fails the pending ones, or the request sees the flag
+        if(closed) {
+            pendingRequests.remove(requestID);
+            reply.completeExceptionally(new IOException("[AsyncTransactionServerProxy.send] Connection closed"));
+            return reply;
+        }
+
+        try {
+            // frames of concurrent senders must not interleave
+            synchronized (dbConnection) {
+                dbConnection.writeMessage(new Message(type, content, transactionID, requestID));
+            }
+        } catch (IOException ex) {
+            pendingRequests.remove(requestID);
+            reply.completeExceptionally(ex);
+        }
+        return reply;
+    }
+
+    /**
+     * Body of the reader thread: completes the pending requests as their replies arrive, and fails all of them
+     * once the connection is gone
+     */
+    private void readReplies() {
+        Message reply;
+        CompletableFuture<Message> pendingRequest;
+
+        try {
+            while(true) {
+                reply = dbConnection.readMessage();
+                pendingRequest = pendingRequests.remove(reply.getRequestID());
+
+                if(pendingRequest != null) {
+                    pendingRequest.complete(reply);
+                } else {
+                    System.out.println("[AsyncTransactionServerProxy.readReplies] Reply to unknown request #" + reply.getRequestID());
+                }
+            }
+        } catch (IOException ex) {
+            IOException failure = new IOException("[AsyncTransactionServerProxy.readReplies] Connection closed", ex);
+
+            // requests sent from now on fail right away instead of waiting for a reply that never comes
+            closed = true;
+
+            for(Integer requestID : pendingRequests.keySet()) {
+                pendingRequest = pendingRequests.remove(requestID);
+                if(pendingRequest != null) {
+                    pendingRequest.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    // turns the reply to a READ_REQUEST or WRITE_REQUEST into the balance it carries
+    private static CompletableFuture<Integer> balanceOf(Message reply) {
+        if(reply.getType() == TRANSACTION_ABORTED) {
+            return CompletableFuture.failedFuture(new TransactionAbortedException());
+        }
+        return CompletableFuture.completedFuture((Integer) reply.getContent());
+    }
+
+    // turns the reply to a MULTI_READ_REQUEST or MULTI_WRITE_REQUEST into the balances it carries
+    private static CompletableFuture<int[]> balancesOf(Message reply) {
+        if(reply.getType() == TRANSACTION_ABORTED) {
+            return CompletableFuture.failedFuture(new TransactionAbortedException());
+        }
+        return CompletableFuture.completedFuture((int[]) reply.getContent());
+    }
+}
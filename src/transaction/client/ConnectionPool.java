@@ -0,0 +1,93 @@
+package transaction.client;
+
+import transaction.comm.MessageConnection;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * class [ConnectionPool] keeps a small number of connections to the transaction server that are shared by the
+ * transaction executor threads. A connection carries one transaction at a time and is handed back to the pool
+ * after the transaction closed, so the next transaction doesn't pay for a new TCP handshake and stream setup.
+ *
+ * @author surya and bhavana
+ */
+public class ConnectionPool {
+
+    private final String host;
+    private final int port;
+    private final int protocol;
+
+    // connections not carrying a transaction right now
+    private final BlockingQueue<MessageConnection> idleConnections = new LinkedBlockingQueue<>();
+
+    // permits for the connections that may exist at the same time
+    private final Semaphore permits;
+
+    /**
+     * custom constructor
+     *
+     * @param host IP address of the Transaction Server
+     * @param port port of the Transaction Server
+     * @param protocol wire protocol to speak, as defined in MessageConnection
+     * @param size maximum number of connections
+     */
+    ConnectionPool(String host, int port, int protocol, int size) {
+        this.host = host;
+        this.port = port;
+        this.protocol = protocol;
+        this.permits = new Semaphore(size);
+    }
+
+    /**
+     * Takes a connection out of the pool, opening a new one if no idle connection is left. Waits while all
+     * connections of the pool are in use.
+     *
+     * @return the connection
+     *
+     * @throws IOException if a new connection can't be opened
+     */
+    public MessageConnection acquire() throws IOException {
+        MessageConnection connection;
+
+        permits.acquireUninterruptibly();
+
+        connection = idleConnections.poll();
+        if(connection == null) {
+            try {
+                connection = MessageConnection.connect(new Socket(host, port), protocol);
+            } catch (IOException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Hands a connection back to the pool after its transaction closed
+     *
+     * @param connection the connection
+     */
+    public void release(MessageConnection connection) {
+        idleConnections.add(connection);
+        permits.release();
+    }
+
+    /**
+     * Closes a connection that failed instead of handing it back to the pool
+     *
+     * @param connection the connection
+     */
+    public void discard(MessageConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            System.out.println("[ConnectionPool.discard] Error occurred when closing a connection");
+        }
+        permits.release();
+    }
+}
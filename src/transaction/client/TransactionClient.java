@@ -1,10 +1,15 @@
 package transaction.client;
 
+import transaction.comm.MessageConnection;
 import transaction.exception.TransactionAbortedException;
 import utils.PropertyHandler;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * The class [TransactionClient] is a client for a distributed transaction system.
@@ -25,6 +30,29 @@ public class TransactionClient implements Runnable {
 
     private int numberOfTransactions;
 
+    private int protocol;
+
+    // connections shared by all transaction executors in session mode, null otherwise
+    private ConnectionPool connectionPool = null;
+
+    // whether the transactions are pipelined over one multiplexed connection instead of run by executor threads
+    private boolean asyncMode = false;
+
+    // whether transfers are run by the transfer stored procedure in the server, in a single round trip
+    private boolean procedureMode = false;
+
+    // whether both accounts of a transfer are read, and written, with one batched request
+    private boolean batchMode = false;
+
+    // share of the transactions, in percent, that only read both accounts instead of transferring between them
+    private int readOnlyPercentage = 0;
+
+    // cumulative probabilities of the accounts under a Zipfian distribution, null if accounts are picked uniformly
+    private double[] accountDistribution = null;
+
+    // whether the metrics of the server are printed once all transactions are done
+    private boolean printServerStats = false;
+
     private Properties properties;
 
     /**
@@ -79,6 +107,57 @@ public class TransactionClient implements Runnable {
             System.exit(1);
         }
 
+        protocol = MessageConnection.parseProtocol(properties.getProperty("PROTOCOL", "OBJECT"));
+
+        if(protocol == 0) {
+            System.out.println("[TransactionClient.TransactionClient] couldn't read Protocol");
+            System.exit(1);
+        }
+
+        // in async mode, all transactions are pipelined over one multiplexed connection
+        asyncMode = Boolean.parseBoolean(properties.getProperty("ASYNC_MODE", "false"));
+
+        // in procedure mode, every transfer is a single CALL_PROCEDURE request
+        procedureMode = Boolean.parseBoolean(properties.getProperty("PROCEDURE_MODE", "false"));
+
+        // in batch mode, the accounts of a transfer are read and written with MULTI_READ and MULTI_WRITE requests
+        batchMode = Boolean.parseBoolean(properties.getProperty("BATCH_MODE", "false"));
+
+        printServerStats = Boolean.parseBoolean(properties.getProperty("PRINT_SERVER_STATS", "false"));
+
+        try {
+            readOnlyPercentage = Integer.parseInt(properties.getProperty("READ_ONLY_PERCENTAGE", "0"));
+        } catch (NumberFormatException ex) {
+            System.out.println("[TransactionClient.TransactionClient] couldn't read Read Only Percentage");
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        // with a Zipf exponent, a few low-numbered accounts are picked for most transfers
+        try {
+            double zipfExponent = Double.parseDouble(properties.getProperty("ZIPF_EXPONENT", "0"));
+
+            if(zipfExponent > 0) {
+                accountDistribution = zipfDistribution(numberOfAccounts, zipfExponent);
+            }
+        } catch (NumberFormatException ex) {
+            System.out.println("[TransactionClient.TransactionClient] couldn't read Zipf Exponent");
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        // in session mode, transactions run over a small pool of persistent connections
+        if(Boolean.parseBoolean(properties.getProperty("SESSION_MODE", "false"))) {
+            try {
+                connectionPool = new ConnectionPool(serverIP, serverPort, protocol,
+                        Integer.parseInt(properties.getProperty("CONNECTION_POOL_SIZE", "4")));
+            } catch (NumberFormatException ex) {
+                System.out.println("[TransactionClient.TransactionClient] couldn't read Connection Pool Size");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+        }
+
 
     }
 
@@ -87,24 +166,149 @@ public class TransactionClient implements Runnable {
         // Create the transaction server proxy
         TransactionServerProxy transactionServerProxy;
 
+        if(asyncMode) {
+            runAsync();
+            return;
+        }
+
+        Thread[] transactionThreads = new Thread[numberOfTransactions];
+
         // Create the transaction executors and run them in separate threads
         for (int i = 0; i < numberOfTransactions; i++) {
             int accountA = 0;
             int accountB = 0;
 
             while((accountA == 0 || accountB == 0) || accountA == accountB) {
-                accountA = (int) (Math.random() * numberOfAccounts) + 1;
-                accountB = (int) (Math.random() * numberOfAccounts) + 1;
+                accountA = pickAccount();
+                accountB = pickAccount();
             }
             int amount = 5;
+            boolean readOnly = Math.random() * 100 < readOnlyPercentage;
 
             // Create the transaction server proxy
-            transactionServerProxy = new TransactionServerProxy(serverIP, serverPort);
+            if(connectionPool != null) {
+                transactionServerProxy = new TransactionServerProxy(connectionPool);
+            } else {
+                transactionServerProxy = new TransactionServerProxy(serverIP, serverPort, protocol);
+            }
+
+            TransactionExecutor transactionExecutor = new TransactionExecutor(accountA, accountB, amount, readOnly, transactionServerProxy);
+            transactionThreads[i] = new Thread(transactionExecutor);
+            transactionThreads[i].start();
+        }
+
+        try {
+            for(Thread transactionThread : transactionThreads) {
+                transactionThread.join();
+            }
+        } catch (InterruptedException ex) {
+            return;
+        }
+        printTotalBalance();
+    }
+
+    /**
+     * Prints the total balance of all accounts as kept by the server, and its metrics if asked for, once all
+     * transactions are done
+     */
+    private void printTotalBalance() {
+        TransactionServerProxy transactionServerProxy;
+
+        if(connectionPool != null) {
+            transactionServerProxy = new TransactionServerProxy(connectionPool);
+        } else {
+            transactionServerProxy = new TransactionServerProxy(serverIP, serverPort, protocol);
+        }
+        System.out.println("[TransactionClient.run] The total balance of all accounts is "
+                + transactionServerProxy.getTotalBalance());
+
+        if(printServerStats) {
+            printStats(transactionServerProxy.getStats());
+        }
+    }
+
+    // prints metrics of the server, one per line
+    private static void printStats(Map<String, Long> stats) {
+        for(Map.Entry<String, Long> stat : stats.entrySet()) {
+            System.out.println("[TransactionClient.printStats] " + stat.getKey() + " " + stat.getValue());
+        }
+    }
+
+    /**
+     * Runs all transactions concurrently over one multiplexed connection, without a thread per transaction
+     */
+    private void runAsync() {
+        AsyncTransactionServerProxy asyncTransactionServerProxy;
+        CompletableFuture<?>[] transfers = new CompletableFuture<?>[numberOfTransactions];
+
+        try {
+            asyncTransactionServerProxy = new AsyncTransactionServerProxy(serverIP, serverPort);
+        } catch (IOException ex) {
+            System.out.println("[TransactionClient.runAsync] couldn't connect to the Transaction Server");
+            ex.printStackTrace();
+            return;
+        }
+
+        for (int i = 0; i < numberOfTransactions; i++) {
+            int accountA = 0;
+            int accountB = 0;
+
+            while((accountA == 0 || accountB == 0) || accountA == accountB) {
+                accountA = pickAccount();
+                accountB = pickAccount();
+            }
+            int amount = 5;
 
-            TransactionExecutor transactionExecutor = new TransactionExecutor(accountA, accountB, amount, transactionServerProxy);
-            Thread transactionThread = new Thread(transactionExecutor);
-            transactionThread.start();
+            transfers[i] = new AsyncTransfer(accountA, accountB, amount, asyncTransactionServerProxy).run();
         }
+
+        CompletableFuture.allOf(transfers).join();
+        System.out.println("[TransactionClient.runAsync] The total balance of all accounts is "
+                + asyncTransactionServerProxy.getTotalBalance().join());
+
+        if(printServerStats) {
+            printStats(asyncTransactionServerProxy.getStats().join());
+        }
+        asyncTransactionServerProxy.close();
+    }
+
+    /**
+     * Picks a random account, uniformly or following the Zipfian distribution
+     *
+     * @return the account number
+     */
+    private int pickAccount() {
+        int index;
+
+        if(accountDistribution == null) {
+            return (int) (Math.random() * numberOfAccounts) + 1;
+        }
+
+        index = Arrays.binarySearch(accountDistribution, Math.random());
+        return Math.min(index < 0 ? -index - 1 : index, numberOfAccounts - 1) + 1;
+    }
+
+    /**
+     * Computes the cumulative probabilities of a Zipfian distribution, account k being picked with a probability
+     * proportional to 1 / k^exponent
+     *
+     * @param numberOfAccounts the number of accounts
+     * @param exponent the exponent of the distribution
+     *
+     * @return the cumulative probabilities, indexed by account number - 1
+     */
+    private static double[] zipfDistribution(int numberOfAccounts, double exponent) {
+        double[] distribution = new double[numberOfAccounts];
+        double sum = 0;
+
+        for(int k = 1; k <= numberOfAccounts; k++) {
+            sum += 1 / Math.pow(k, exponent);
+            distribution[k - 1] = sum;
+        }
+        for(int k = 0; k < numberOfAccounts; k++) {
+            distribution[k] /= sum;
+        }
+        return distribution;
     }
 
     public static void main(String[] args) {
@@ -125,32 +329,53 @@ public class TransactionClient implements Runnable {
         private final int accountA;
         private final int accountB;
         private final int amount;
+        private final boolean readOnly;
         private final TransactionServerProxy transactionServerProxy;
 
-        public TransactionExecutor(int accountA, int accountB, int amount, TransactionServerProxy transactionServerProxy) {
+        public TransactionExecutor(int accountA, int accountB, int amount, boolean readOnly, TransactionServerProxy transactionServerProxy) {
             this.accountA = accountA;
             this.accountB = accountB;
             this.amount = amount;
+            this.readOnly = readOnly;
             this.transactionServerProxy = transactionServerProxy;
         }
 
         @Override
         public void run() {
+            if (readOnly) {
+                runReadOnly();
+                return;
+            }
+
+            if (procedureMode) {
+                runProcedure();
+                return;
+            }
+
             while (true) {
                 int transactionId = transactionServerProxy.openTransaction();
                 System.out.println("Transaction with ID " + transactionId +" has opened between " + accountA + " and " + accountB);
                 try {
-                    int balanceA = transactionServerProxy.read(accountA);
-                    System.out.println("Transaction with ID " + transactionId + " READ - Account A balance " + balanceA);
-                    int deductedBalance = balanceA - amount;
-                    transactionServerProxy.write(accountA, deductedBalance);
-                    System.out.println("Transaction with ID " + transactionId + " WRITE - Account A balance " + deductedBalance);
+                    if (batchMode) {
+                        int[] accounts = new int[]{accountA, accountB};
+                        int[] balances = transactionServerProxy.read(accounts);
+                        System.out.println("Transaction with ID " + transactionId + " READ - Account A balance " + balances[0] + ", Account B balance " + balances[1]);
 
-                    int balanceB = transactionServerProxy.read(accountB);
-                    System.out.println("Transaction with ID " + transactionId + " READ - Account B balance " + balanceB);
+                        transactionServerProxy.write(accounts, new int[]{balances[0] - amount, balances[1] + amount});
+                        System.out.println("Transaction with ID " + transactionId + " WRITE - Account A balance " + (balances[0] - amount) + ", Account B balance " + (balances[1] + amount));
+                    } else {
+                        int balanceA = transactionServerProxy.read(accountA);
+                        System.out.println("Transaction with ID " + transactionId + " READ - Account A balance " + balanceA);
+                        int deductedBalance = balanceA - amount;
+                        transactionServerProxy.write(accountA, deductedBalance);
+                        System.out.println("Transaction with ID " + transactionId + " WRITE - Account A balance " + deductedBalance);
 
-                    transactionServerProxy.write(accountB, balanceB + amount);
-                    System.out.println("Transaction with ID " + transactionId + " WRITE - Account B balance " + (balanceB + amount));
+                        int balanceB = transactionServerProxy.read(accountB);
+                        System.out.println("Transaction with ID " + transactionId + " READ - Account B balance " + balanceB);
+
+                        transactionServerProxy.write(accountB, balanceB + amount);
+                        System.out.println("Transaction with ID " + transactionId + " WRITE - Account B balance " + (balanceB + amount));
+                    }
 
                     int status = transactionServerProxy.closeTransaction();
                     if (status == TransactionServerProxy.TRANSACTION_COMMITTED) {
@@ -164,5 +389,102 @@ public class TransactionClient implements Runnable {
                 }
             }
         }
+
+        /**
+         * Reads both accounts in a read-only transaction until it commits
+         */
+        private void runReadOnly() {
+            while (true) {
+                int transactionId = transactionServerProxy.openTransaction(true);
+                System.out.println("Transaction with ID " + transactionId + " has opened read-only on " + accountA + " and " + accountB);
+                try {
+                    int balanceA = transactionServerProxy.read(accountA);
+                    int balanceB = transactionServerProxy.read(accountB);
+                    System.out.println("Transaction with ID " + transactionId + " READ - Account A balance " + balanceA + ", Account B balance " + balanceB);
+
+                    int status = transactionServerProxy.closeTransaction();
+                    if (status == TransactionServerProxy.TRANSACTION_COMMITTED) {
+                        System.out.println("Transaction committed successfully.");
+                        break;
+                    } else {
+                        System.out.println("Transaction aborted. Retrying...");
+                    }
+                } catch (TransactionAbortedException ex) {
+                    System.out.println("Transaction aborted. Retrying...");
+                }
+            }
+        }
+
+        /**
+         * Runs the transfer with the transfer stored procedure until it commits
+         */
+        private void runProcedure() {
+            while (true) {
+                int status = transactionServerProxy.callProcedure("transfer", accountA, accountB, amount);
+
+                if (status == TransactionServerProxy.TRANSACTION_COMMITTED) {
+                    System.out.println("Transfer between " + accountA + " and " + accountB + " - Account A balance "
+                            + transactionServerProxy.getProcedureResult());
+                    System.out.println("Transaction committed successfully.");
+                    break;
+                } else {
+                    System.out.println("Transaction aborted. Retrying...");
+                }
+            }
+        }
+    }
+
+    /**
+     * class [AsyncTransfer] runs one transfer as a chain of futures: both reads are sent at once, then both writes
+     * and the close, without waiting in between. An aborted transfer is started over.
+     */
+    private static class AsyncTransfer {
+
+        private final int accountA;
+        private final int accountB;
+        private final int amount;
+        private final AsyncTransactionServerProxy transactionServerProxy;
+
+        public AsyncTransfer(int accountA, int accountB, int amount, AsyncTransactionServerProxy transactionServerProxy) {
+            this.accountA = accountA;
+            this.accountB = accountB;
+            this.amount = amount;
+            this.transactionServerProxy = transactionServerProxy;
+        }
+
+        /**
+         * Runs the transfer until it commits
+         *
+         * @return future completed once the transfer committed
+         */
+        public CompletableFuture<Void> run() {
+            return transactionServerProxy.openTransaction().thenCompose(transactionId -> {
+                System.out.println("Transaction with ID " + transactionId + " has opened between " + accountA + " and " + accountB);
+
+                CompletableFuture<Integer> balanceA = transactionServerProxy.read(transactionId, accountA);
+                CompletableFuture<Integer> balanceB = transactionServerProxy.read(transactionId, accountB);
+
+                return balanceA.thenCombine(balanceB, (a, b) -> {
+                    System.out.println("Transaction with ID " + transactionId + " READ - Account A balance " + a + ", Account B balance " + b);
+
+                    transactionServerProxy.write(transactionId, accountA, a - amount);
+                    transactionServerProxy.write(transactionId, accountB, b + amount);
+                    return transactionServerProxy.closeTransaction(transactionId);
+                }).thenCompose(status -> status).exceptionally(ex -> {
+                    // an aborted transaction is retried, anything else fails the transfer
+                    if (ex.getCause() instanceof TransactionAbortedException) {
+                        return TransactionServerProxy.TRANSACTION_ABORTED;
+                    }
+                    throw new CompletionException(ex.getCause());
+                });
+            }).thenCompose(status -> {
+                if (status == TransactionServerProxy.TRANSACTION_COMMITTED) {
+                    System.out.println("Transaction committed successfully.");
+                    return CompletableFuture.completedFuture(null);
+                }
+                System.out.println("Transaction aborted. Retrying...");
+                return run();
+            });
+        }
     }
 }
@@ -1,24 +1,32 @@
 package transaction.client;
 
 import transaction.comm.Message;
+import transaction.comm.MessageConnection;
 import transaction.comm.MessageTypes;
 import transaction.exception.TransactionAbortedException;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
 
 public class TransactionServerProxy implements MessageTypes {
 
     String host;
     int port;
 
-    private Socket dbConnection;
-    private ObjectOutputStream writeToNet;
-    private ObjectInputStream readFromNet;
+    // wire protocol spoken with the server
+    int protocol;
+
+    // pool of persistent connections shared with other proxies, null if every transaction opens its own connection
+    ConnectionPool connectionPool = null;
+
+    private MessageConnection dbConnection;
     private Integer transactionID = 0;
 
+    // result of the last stored procedure called
+    private int procedureResult = 0;
+
     /**
      * custom constructor
      *
@@ -26,8 +34,30 @@ public class TransactionServerProxy implements MessageTypes {
      * @param port port of the Transaction Server
      */
     TransactionServerProxy(String host, int port) {
+        this(host, port, MessageConnection.OBJECT_PROTOCOL);
+    }
+
+    /**
+     * custom constructor
+     *
+     * @param host IP address of the Transaction Server
+     * @param port port of the Transaction Server
+     * @param protocol wire protocol to speak, as defined in MessageConnection
+     */
+    TransactionServerProxy(String host, int port, int protocol) {
         this.host = host;
         this.port = port;
+        this.protocol = protocol;
+    }
+
+    /**
+     * custom constructor for session mode: transactions are run over connections taken from a pool, which carry
+     * many transactions one after the other
+     *
+     * @param connectionPool the pool of connections to the Transaction Server
+     */
+    TransactionServerProxy(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
 
     /**
@@ -36,19 +66,23 @@ public class TransactionServerProxy implements MessageTypes {
      * @return int transaction ID
      */
     public int openTransaction() {
-        try {
-            dbConnection = new Socket(host, port);
-            writeToNet = new ObjectOutputStream(dbConnection.getOutputStream());
-            readFromNet = new ObjectInputStream(dbConnection.getInputStream());
-        } catch (IOException ex) {
-            System.out.println("[TransactionServerProxy.openTransaction] Error occurred when opening object streams");
-            ex.printStackTrace();
-        }
+        return openTransaction(false);
+    }
+
+    /**
+     * opens a transaction, a read-only transaction is aborted if it writes
+     *
+     * @param readOnly whether the transaction is read-only
+     *
+     * @return int transaction ID
+     */
+    public int openTransaction(boolean readOnly) {
+        connect();
 
         try {
-            writeToNet.writeObject(new Message(OPEN_TRANSACTION, null));
-            transactionID = (Integer) readFromNet.readObject();
-        } catch (IOException | ClassNotFoundException | NullPointerException ex) {
+            dbConnection.writeMessage(new Message(OPEN_TRANSACTION, readOnly ? (Integer) READ_ONLY : null));
+            transactionID = (Integer) dbConnection.readMessage().getContent();
+        } catch (IOException | NullPointerException ex) {
             System.out.println("[TransactionServerProxy.openTransaction] Error occurred when writing/reading messages");
             ex.printStackTrace();
         }
@@ -64,19 +98,103 @@ public class TransactionServerProxy implements MessageTypes {
         int returnStatus = TRANSACTION_COMMITTED;
 
         try {
-            writeToNet.writeObject(new Message(CLOSE_TRANSACTION, null));
-            returnStatus = (int) readFromNet.readObject();
-
-            readFromNet.close();
-            writeToNet.close();
-            dbConnection.close();
+            dbConnection.writeMessage(new Message(CLOSE_TRANSACTION, null));
+            returnStatus = dbConnection.readMessage().getType();
+            disconnect(false);
         } catch (Exception ex) {
             System.out.println("[TransactionServerProxy.closeTransaction] Error occurred");
             ex.printStackTrace();
+            disconnect(true);
+        }
+        return returnStatus;
+    }
+
+    /**
+     * Runs a stored procedure as a whole transaction in the server, in a single round trip. The result of the
+     * procedure is available from getProcedureResult afterwards.
+     *
+     * @param procedureName name of the procedure, e.g. transfer
+     * @param arguments arguments of the procedure
+     *
+     * @return the status, i.e. either TRANSACTION_COMMITTED OR TRANSACTION_ABORTED
+     */
+    public int callProcedure(String procedureName, int... arguments) {
+        int returnStatus = TRANSACTION_ABORTED;
+        Message reply;
+
+        connect();
+
+        try {
+            dbConnection.writeMessage(new Message(CALL_PROCEDURE, new Object[]{procedureName, arguments}));
+            reply = dbConnection.readMessage();
+
+            returnStatus = reply.getType();
+            if(reply.getContent() != null) {
+                procedureResult = (Integer) reply.getContent();
+            }
+            disconnect(false);
+        } catch (Exception ex) {
+            System.out.println("[TransactionServerProxy.callProcedure] Error occurred");
+            ex.printStackTrace();
+            disconnect(true);
         }
         return returnStatus;
     }
 
+    /**
+     * Returns the result of the last stored procedure called
+     *
+     * @return the result
+     */
+    public int getProcedureResult() {
+        return procedureResult;
+    }
+
+    /**
+     * Asks the server for the total balance of all accounts, outside of any transaction
+     *
+     * @return the total balance, or -1 if the server couldn't be asked
+     */
+    public long getTotalBalance() {
+        long totalBalance = -1;
+
+        connect();
+
+        try {
+            dbConnection.writeMessage(new Message(TOTAL_BALANCE_REQUEST, null));
+            totalBalance = (Long) dbConnection.readMessage().getContent();
+            disconnect(false);
+        } catch (Exception ex) {
+            System.out.println("[TransactionServerProxy.getTotalBalance] Error occurred");
+            ex.printStackTrace();
+            disconnect(true);
+        }
+        return totalBalance;
+    }
+
+    /**
+     * Asks the server for a snapshot of its metrics, outside of any transaction
+     *
+     * @return the metrics by name, empty if the server couldn't be asked
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = Collections.emptyMap();
+
+        connect();
+
+        try {
+            dbConnection.writeMessage(new Message(STATS_REQUEST, null));
+            stats = (Map<String, Long>) dbConnection.readMessage().getContent();
+            disconnect(false);
+        } catch (Exception ex) {
+            System.out.println("[TransactionServerProxy.getStats] Error occurred");
+            ex.printStackTrace();
+            disconnect(true);
+        }
+        return stats;
+    }
+
     /**
      * Reading a value from account
      *
@@ -87,21 +205,21 @@ public class TransactionServerProxy implements MessageTypes {
      * @throws TransactionAbortedException
      */
     public int read(int accountNumber) throws TransactionAbortedException {
-        Message message = new Message(READ_REQUEST, accountNumber);
+        Message reply;
 
         try {
-            writeToNet.writeObject(message);
-            message = (Message) readFromNet.readObject();
+            dbConnection.writeMessage(new Message(READ_REQUEST, accountNumber));
+            reply = dbConnection.readMessage();
         } catch (Exception ex) {
             System.out.println("[TransactionServerProxy.read] Error occurred");
             ex.printStackTrace();
+            throw aborted(null);
         }
 
-        if(message.getType() == READ_REQUEST_RESPONSE) {
-            return (int) message.getContent();
-        } else {
-            throw new TransactionAbortedException();
+        if(reply != null && reply.getType() == READ_REQUEST_RESPONSE) {
+            return (int) reply.getContent();
         }
+        throw aborted(reply);
     }
 
     /**
@@ -114,19 +232,130 @@ public class TransactionServerProxy implements MessageTypes {
      */
     public void write(int accountNumber, int amount) throws TransactionAbortedException {
         Object[] content = new Object[]{accountNumber, amount};
-        Message message = new Message(WRITE_REQUEST, content);
+        Message reply;
+
         try {
-            writeToNet.writeObject(message);
-            message = (Message) readFromNet.readObject();
-        } catch (IOException | ClassNotFoundException ex) {
-            System.out.println("[TransactionServerProxy.write] Error occurred: IOException | ClassNotFoundException");
+            dbConnection.writeMessage(new Message(WRITE_REQUEST, content));
+            reply = dbConnection.readMessage();
+        } catch (Exception ex) {
+            System.out.println("[TransactionServerProxy.write] Error occurred");
             ex.printStackTrace();
-            System.err.println("\n\n");
+            throw aborted(null);
         }
 
-        if(message.getType() == TRANSACTION_ABORTED) {
-            // transaction is aborted
-            throw new TransactionAbortedException();
+        if(reply == null || reply.getType() != READ_REQUEST_RESPONSE) {
+            throw aborted(reply);
+        }
+    }
+
+    /**
+     * Reading the values of several accounts in a single round trip
+     *
+     * @param accountNumbers account numbers to read
+     *
+     * @return the balances of the accounts, in the order of the account numbers
+     *
+     * @throws TransactionAbortedException
+     */
+    public int[] read(int[] accountNumbers) throws TransactionAbortedException {
+        return exchangeMulti(new Message(MULTI_READ_REQUEST, accountNumbers));
+    }
+
+    /**
+     * Writes amounts to several accounts in a single round trip
+     *
+     * @param accountNumbers account numbers to write
+     * @param amounts amounts to be written, in the order of the account numbers
+     *
+     * @return the balances the accounts had before, in the order of the account numbers
+     *
+     * @throws TransactionAbortedException
+     */
+    public int[] write(int[] accountNumbers, int[] amounts) throws TransactionAbortedException {
+        return exchangeMulti(new Message(MULTI_WRITE_REQUEST, new Object[]{accountNumbers, amounts}));
+    }
+
+    /**
+     * Sends a MULTI_READ_REQUEST or MULTI_WRITE_REQUEST and waits for its reply
+     *
+     * @param message the request
+     *
+     * @return the balances carried by the reply
+     *
+     * @throws TransactionAbortedException
+     */
+    private int[] exchangeMulti(Message message) throws TransactionAbortedException {
+        Message reply;
+
+        try {
+            dbConnection.writeMessage(message);
+            reply = dbConnection.readMessage();
+        } catch (Exception ex) {
+            System.out.println("[TransactionServerProxy.exchangeMulti] Error occurred");
+            ex.printStackTrace();
+            throw aborted(null);
+        }
+
+        if(reply != null && reply.getType() == MULTI_READ_RESPONSE) {
+            return (int[]) reply.getContent();
+        }
+        throw aborted(reply);
+    }
+
+    /**
+     * Gives the connection up after a read or write didn't get its expected reply. Only a TRANSACTION_ABORTED
+     * reply leaves the connection in step with the server, free for the next transaction; after a failure or any
+     * other reply it is discarded.
+     *
+     * @param reply the reply received, null if the request failed
+     *
+     * @return the exception to throw
+     */
+    private TransactionAbortedException aborted(Message reply) {
+        disconnect(reply == null || reply.getType() != TRANSACTION_ABORTED);
+        return new TransactionAbortedException();
+    }
+
+    /**
+     * Opens a connection, or takes one from the pool in session mode
+     */
+    private void connect() {
+        try {
+            if(connectionPool != null) {
+                dbConnection = connectionPool.acquire();
+            } else {
+                dbConnection = MessageConnection.connect(new Socket(host, port), protocol);
+            }
+        } catch (IOException ex) {
+            System.out.println("[TransactionServerProxy.connect] Error occurred when opening object streams");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the connection, or in session mode hands it back to the pool for the next transaction
+     *
+     * @param failed whether the connection failed and must not be reused
+     */
+    private void disconnect(boolean failed) {
+        // the connection couldn't be opened, there is nothing to hand back
+        if(dbConnection == null) {
+            return;
+        }
+
+        try {
+            if(connectionPool != null) {
+                if(failed) {
+                    connectionPool.discard(dbConnection);
+                } else {
+                    connectionPool.release(dbConnection);
+                }
+            } else {
+                dbConnection.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("[TransactionServerProxy.disconnect] Error occurred when closing the connection");
         }
+        dbConnection = null;
     }
 }
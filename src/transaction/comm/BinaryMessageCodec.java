@@ -0,0 +1,292 @@
+package transaction.comm;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class [BinaryMessageCodec] encodes messages into a compact binary payload: the message type followed by the
+ * fields of that type, all fixed-size little-endian ints. No class descriptors and no boxed objects are sent.
+ *
+ *   OPEN_TRANSACTION          request: flags, if any        reply: transaction ID
+ *   READ_REQUEST              account number
+ *   WRITE_REQUEST             account number, balance
+ *   READ_REQUEST_RESPONSE     balance
+ *   MULTI_READ_REQUEST        number of accounts, account numbers
+ *   MULTI_WRITE_REQUEST       number of accounts, (account number, balance) pairs
+ *   MULTI_READ_RESPONSE       number of balances, balances
+ *   CALL_PROCEDURE            name length, UTF-8 name, number of arguments, arguments
+ *   TRANSACTION_COMMITTED,
+ *   TRANSACTION_ABORTED       reply to CALL_PROCEDURE: result, if there is one
+ *   TOTAL_BALANCE_RESPONSE    total balance, as a little-endian long
+ *   STATS_RESPONSE            number of metrics, (name length, UTF-8 name, little-endian long value) per metric
+ *   all other types           -
+ *
+ * The tagged variant, used on multiplexed connections, sends the transaction ID and the request ID of the message
+ * right after the type.
+ *
+ * @author surya
+ */
+public class BinaryMessageCodec implements MessageCodec, MessageTypes {
+
+    // size of an encoded int field
+    static final int INT_SIZE = 4;
+
+    // size of an encoded long field
+    static final int LONG_SIZE = 8;
+
+    // whether messages carry their transaction ID and request ID
+    final boolean tagged;
+
+    // size of the type and, if tagged, the tags
+    final int headerSize;
+
+    // default constructor, for untagged messages
+    public BinaryMessageCodec() {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tagged whether messages carry their transaction ID and request ID
+     */
+    public BinaryMessageCodec(boolean tagged) {
+        this.tagged = tagged;
+        this.headerSize = tagged ? 3 * INT_SIZE : INT_SIZE;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        Object content = message.getContent();
+        ByteBuffer payload;
+
+        switch (message.getType()) {
+            case OPEN_TRANSACTION:
+            case TRANSACTION_COMMITTED:
+            case TRANSACTION_ABORTED:
+                if(content == null) {
+                    payload = allocate(0);
+                } else {
+                    payload = allocate(1).putInt((Integer) content);
+                }
+                break;
+
+            case READ_REQUEST:
+            case READ_REQUEST_RESPONSE:
+                payload = allocate(1).putInt((Integer) content);
+                break;
+
+            case WRITE_REQUEST:
+                Object[] fields = (Object[]) content;
+                payload = allocate(2).putInt((Integer) fields[0]).putInt((Integer) fields[1]);
+                break;
+
+            case MULTI_READ_REQUEST:
+            case MULTI_READ_RESPONSE:
+                payload = allocate(1 + ((int[]) content).length);
+                putInts(payload, (int[]) content);
+                break;
+
+            case MULTI_WRITE_REQUEST:
+                int[] accountNumbers = (int[]) ((Object[]) content)[0];
+                int[] balances = (int[]) ((Object[]) content)[1];
+
+                payload = allocate(1 + 2 * accountNumbers.length).putInt(accountNumbers.length);
+                for(int index = 0; index < accountNumbers.length; index++) {
+                    payload.putInt(accountNumbers[index]).putInt(balances[index]);
+                }
+                break;
+
+            case TOTAL_BALANCE_RESPONSE:
+                payload = allocateBytes(LONG_SIZE).putLong((Long) content);
+                break;
+
+            case STATS_RESPONSE:
+                payload = encodeStats((Map<?, ?>) content);
+                break;
+
+            case CALL_PROCEDURE:
+                Object[] call = (Object[]) content;
+                byte[] name = ((String) call[0]).getBytes(StandardCharsets.UTF_8);
+                int[] arguments = (int[]) call[1];
+
+                payload = allocateBytes(INT_SIZE + name.length + INT_SIZE * (1 + arguments.length));
+                payload.putInt(name.length).put(name);
+                putInts(payload, arguments);
+                break;
+
+            default:
+                payload = allocate(0);
+        }
+        payload.putInt(0, message.getType());
+        if(tagged) {
+            payload.putInt(INT_SIZE, message.getTransactionID());
+            payload.putInt(2 * INT_SIZE, message.getRequestID());
+        }
+        return payload.array();
+    }
+
+    @Override
+    public Message decode(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        int transactionID = 0;
+        int requestID = 0;
+        Object content;
+
+        try {
+            int type = payload.getInt();
+
+            if(tagged) {
+                transactionID = payload.getInt();
+                requestID = payload.getInt();
+            }
+
+            switch (type) {
+                case OPEN_TRANSACTION:
+                case TRANSACTION_COMMITTED:
+                case TRANSACTION_ABORTED:
+                    content = payload.hasRemaining() ? (Integer) payload.getInt() : null;
+                    break;
+
+                case READ_REQUEST:
+                case READ_REQUEST_RESPONSE:
+                    content = payload.getInt();
+                    break;
+
+                case WRITE_REQUEST:
+                    content = new Object[]{payload.getInt(), payload.getInt()};
+                    break;
+
+                case MULTI_READ_REQUEST:
+                case MULTI_READ_RESPONSE:
+                    content = getInts(payload, readCount(payload, 1));
+                    break;
+
+                case MULTI_WRITE_REQUEST:
+                    int numberOfAccounts = readCount(payload, 2);
+                    int[] accountNumbers = new int[numberOfAccounts];
+                    int[] balances = new int[numberOfAccounts];
+
+                    for(int index = 0; index < numberOfAccounts; index++) {
+                        accountNumbers[index] = payload.getInt();
+                        balances[index] = payload.getInt();
+                    }
+                    content = new Object[]{accountNumbers, balances};
+                    break;
+
+                case TOTAL_BALANCE_RESPONSE:
+                    content = payload.getLong();
+                    break;
+
+                case STATS_RESPONSE:
+                    content = decodeStats(payload);
+                    break;
+
+                case CALL_PROCEDURE:
+                    int nameLength = payload.getInt();
+                    if(nameLength < 0 || nameLength > payload.remaining()) {
+                        throw new IOException("[BinaryMessageCodec.decode] Invalid procedure name length " + nameLength);
+                    }
+                    byte[] name = new byte[nameLength];
+                    payload.get(name);
+
+                    content = new Object[]{new String(name, StandardCharsets.UTF_8), getInts(payload, readCount(payload, 1))};
+                    break;
+
+                default:
+                    content = null;
+            }
+            return new Message(type, content, transactionID, requestID);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("[BinaryMessageCodec.decode] Truncated payload", ex);
+        }
+    }
+
+    // encodes metrics as their number followed by a (name length, name, value) triple each
+    private ByteBuffer encodeStats(Map<?, ?> stats) {
+        List<byte[]> names = new ArrayList<>(stats.size());
+        int size = INT_SIZE;
+        ByteBuffer payload;
+        int index = 0;
+
+        for(Object name : stats.keySet()) {
+            names.add(((String) name).getBytes(StandardCharsets.UTF_8));
+            size += INT_SIZE + names.get(index++).length + LONG_SIZE;
+        }
+
+        payload = allocateBytes(size).putInt(stats.size());
+        index = 0;
+        for(Object value : stats.values()) {
+            payload.putInt(names.get(index).length).put(names.get(index)).putLong((Long) value);
+            index++;
+        }
+        return payload;
+    }
+
+    // decodes metrics encoded by encodeStats, keeping their order
+    private static Map<String, Long> decodeStats(ByteBuffer payload) throws IOException {
+        int numberOfMetrics = readCount(payload, 3);
+        Map<String, Long> stats = new LinkedHashMap<>();
+        int nameLength;
+        byte[] name;
+
+        for(int index = 0; index < numberOfMetrics; index++) {
+            nameLength = payload.getInt();
+            if(nameLength < 0 || nameLength > payload.remaining()) {
+                throw new IOException("[BinaryMessageCodec.decode] Invalid metric name length " + nameLength);
+            }
+            name = new byte[nameLength];
+            payload.get(name);
+            stats.put(new String(name, StandardCharsets.UTF_8), payload.getLong());
+        }
+        return stats;
+    }
+
+    // writes an int array as its length followed by its elements
+    private static void putInts(ByteBuffer payload, int[] values) {
+        payload.putInt(values.length);
+        for(int value : values) {
+            payload.putInt(value);
+        }
+    }
+
+    // reads the given number of ints into a new array
+    private static int[] getInts(ByteBuffer payload, int count) {
+        int[] values = new int[count];
+
+        for(int index = 0; index < count; index++) {
+            values[index] = payload.getInt();
+        }
+        return values;
+    }
+
+    // reads the element count of an array whose elements are the given number of int fields each, checking it
+    // against the bytes left
+    private static int readCount(ByteBuffer payload, int fieldsPerElement) throws IOException {
+        int count = payload.getInt();
+
+        if(count < 0 || count > payload.remaining() / (INT_SIZE * fieldsPerElement)) {
+            throw new IOException("[BinaryMessageCodec.decode] Invalid element count " + count);
+        }
+        return count;
+    }
+
+    // allocates a payload for the header and the given number of int fields, positioned after the header
+    private ByteBuffer allocate(int numberOfFields) {
+        return allocateBytes(INT_SIZE * numberOfFields);
+    }
+
+    // allocates a payload for the header and the given number of bytes, positioned after the header
+    private ByteBuffer allocateBytes(int numberOfBytes) {
+        ByteBuffer payload = ByteBuffer.allocate(headerSize + numberOfBytes).order(ByteOrder.LITTLE_ENDIAN);
+        payload.position(headerSize);
+        return payload;
+    }
+}
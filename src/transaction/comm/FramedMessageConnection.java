@@ -0,0 +1,79 @@
+package transaction.comm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * class [FramedMessageConnection] speaks a framed protocol over blocking streams: every message is sent as a
+ * 4 byte little-endian payload length followed by the payload produced by a MessageCodec. The client side opens
+ * the connection by sending the magic of the protocol.
+ *
+ * @author surya
+ */
+public class FramedMessageConnection extends MessageConnection {
+
+    final DataInputStream readFromNet;
+    final OutputStream writeToNet;
+    final MessageCodec codec;
+
+    // buffer the payload of incoming frames is read into
+    byte[] payload = new byte[256];
+
+    /**
+     * Constructor
+     *
+     * @param socket the underlying socket
+     * @param inputStream stream to read frames from
+     * @param magic the magic to send first, or 0 on the server side, which already consumed it
+     * @param codec the codec for the frame payloads
+     *
+     * @throws IOException if the streams can't be opened
+     */
+    FramedMessageConnection(Socket socket, InputStream inputStream, int magic, MessageCodec codec) throws IOException {
+        super(socket);
+        this.readFromNet = new DataInputStream(inputStream);
+        this.writeToNet = new BufferedOutputStream(socket.getOutputStream());
+        this.codec = codec;
+
+        if(magic != 0) {
+            writeInt(magic);
+            writeToNet.flush();
+        }
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        int length = Integer.reverseBytes(readFromNet.readInt());
+
+        if(length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("[FramedMessageConnection.readMessage] Invalid frame length " + length);
+        }
+        if(length > payload.length) {
+            payload = new byte[length];
+        }
+
+        readFromNet.readFully(payload, 0, length);
+        return codec.decode(payload, 0, length);
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        byte[] encoded = codec.encode(message);
+
+        writeInt(encoded.length);
+        writeToNet.write(encoded);
+        writeToNet.flush();
+    }
+
+    // writes an int in little-endian byte order
+    private void writeInt(int value) throws IOException {
+        writeToNet.write(value);
+        writeToNet.write(value >>> 8);
+        writeToNet.write(value >>> 16);
+        writeToNet.write(value >>> 24);
+    }
+}
@@ -11,11 +11,19 @@ import java.io.Serializable;
  */
 public class Message implements MessageTypes, Serializable {
 
+    // the serialized form of the original class, so clients built before the tags were added stay compatible
+    private static final long serialVersionUID = 6817522522587608051L;
+
     // type of message, types are defined in interface MessageTypes
     int type;
     // content that is specific to a certain message type
     Object content;
 
+    // tags of a multiplexed connection: the transaction a request belongs to and the request a reply answers;
+    // 0 on connections carrying one transaction at a time
+    int transactionID;
+    int requestID;
+
 
     // constructor
     public Message(int type, Object content) {
@@ -23,6 +31,14 @@ public class Message implements MessageTypes, Serializable {
         this.content = content;
     }
 
+    // constructor for tagged messages
+    public Message(int type, Object content, int transactionID, int requestID) {
+        this.type = type;
+        this.content = content;
+        this.transactionID = transactionID;
+        this.requestID = requestID;
+    }
+
     // getters
     public int getType()
     {
@@ -33,4 +49,14 @@ public class Message implements MessageTypes, Serializable {
     {
         return content;
     }
+
+    public int getTransactionID()
+    {
+        return transactionID;
+    }
+
+    public int getRequestID()
+    {
+        return requestID;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package transaction.comm;
+
+import java.io.IOException;
+
+/**
+ * interface [MessageCodec] turns a Message into the payload of a frame and back. Frames are the unit of the
+ * framed wire protocols: a 4 byte little-endian payload length followed by the payload.
+ *
+ * @author surya
+ */
+public interface MessageCodec {
+
+    /**
+     * Encodes a message into a frame payload
+     *
+     * @param message the message to encode
+     *
+     * @return the payload
+     *
+     * @throws IOException if the message can't be encoded
+     */
+    byte[] encode(Message message) throws IOException;
+
+    /**
+     * Decodes a frame payload into a message
+     *
+     * @param payload buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     *
+     * @return the message
+     *
+     * @throws IOException if the payload can't be decoded
+     */
+    Message decode(byte[] payload, int offset, int length) throws IOException;
+}
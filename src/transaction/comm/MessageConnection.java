@@ -0,0 +1,169 @@
+package transaction.comm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * class [MessageConnection] sends and receives Messages over a socket, hiding the wire protocol in use.
+ * A client picks the protocol when it connects, the server detects it from the first bytes it receives:
+ * a client speaking a framed protocol starts with the 4 byte magic of that protocol, a client speaking the
+ * original object stream protocol starts with the object stream header. Old clients therefore keep working.
+ *
+ * @author surya
+ */
+public abstract class MessageConnection implements MessageTypes, Closeable {
+
+    // wire protocols
+    public static final int OBJECT_PROTOCOL = 1;
+    public static final int FRAMED_PROTOCOL = 2;
+    public static final int BINARY_PROTOCOL = 3;
+    public static final int MULTIPLEXED_PROTOCOL = 4;
+
+    // first four bytes sent by a client speaking a framed protocol, "TXF1", "TXB1" and "TXM1" read as little-endian int
+    public static final int FRAMED_PROTOCOL_MAGIC = 0x31465854;
+    public static final int BINARY_PROTOCOL_MAGIC = 0x31425854;
+    public static final int MULTIPLEXED_PROTOCOL_MAGIC = 0x314D5854;
+
+    // length of the magic and of the frame header, which holds the little-endian payload length
+    public static final int MAGIC_LENGTH = 4;
+    public static final int FRAME_HEADER_LENGTH = 4;
+
+    // upper bound for the payload of a frame
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // the underlying socket
+    final Socket socket;
+
+    MessageConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Reads the next message
+     *
+     * @return the message
+     *
+     * @throws IOException if the message can't be read, e.g. because the peer closed the connection
+     */
+    public abstract Message readMessage() throws IOException;
+
+    /**
+     * Writes a message
+     *
+     * @param message the message to write
+     *
+     * @throws IOException if the message can't be written
+     */
+    public abstract void writeMessage(Message message) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Opens the client side of a connection
+     *
+     * @param socket socket connected to the server
+     * @param protocol the wire protocol to speak
+     *
+     * @return the connection
+     *
+     * @throws IOException if the streams can't be opened
+     */
+    public static MessageConnection connect(Socket socket, int protocol) throws IOException {
+        if(protocol == FRAMED_PROTOCOL) {
+            return new FramedMessageConnection(socket, socket.getInputStream(), FRAMED_PROTOCOL_MAGIC,
+                    new SerializedMessageCodec());
+        } else if(protocol == BINARY_PROTOCOL) {
+            return new FramedMessageConnection(socket, socket.getInputStream(), BINARY_PROTOCOL_MAGIC,
+                    new BinaryMessageCodec());
+        } else if(protocol == MULTIPLEXED_PROTOCOL) {
+            return new FramedMessageConnection(socket, socket.getInputStream(), MULTIPLEXED_PROTOCOL_MAGIC,
+                    new BinaryMessageCodec(true));
+        }
+        return new ObjectMessageConnection(socket, socket.getInputStream(), false);
+    }
+
+    /**
+     * Opens the server side of a connection, detecting the wire protocol the client speaks
+     *
+     * @param socket socket accepted from a client
+     *
+     * @return the connection
+     *
+     * @throws IOException if the streams can't be opened or the client speaks an unknown protocol
+     */
+    public static MessageConnection accept(Socket socket) throws IOException {
+        InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int magicLength = 0;
+        int read;
+        MessageCodec codec;
+
+        // peek at the first bytes
+        inputStream.mark(MAGIC_LENGTH);
+        while(magicLength < MAGIC_LENGTH) {
+            read = inputStream.read(magic, magicLength, MAGIC_LENGTH - magicLength);
+            if(read < 0) {
+                throw new IOException("[MessageConnection.accept] Connection closed before the protocol was known");
+            }
+            magicLength += read;
+        }
+
+        codec = codecFor(toInt(magic));
+        if(codec != null) {
+            return new FramedMessageConnection(socket, inputStream, 0, codec);
+        }
+
+        // anything else must be the header of an object stream
+        inputStream.reset();
+        return new ObjectMessageConnection(socket, inputStream, true);
+    }
+
+    /**
+     * Returns a codec for the framed protocol announced by a magic
+     *
+     * @param magic the first four bytes received, read as little-endian int
+     *
+     * @return the codec, or null if the magic belongs to no framed protocol
+     */
+    public static MessageCodec codecFor(int magic) {
+        if(magic == FRAMED_PROTOCOL_MAGIC) {
+            return new SerializedMessageCodec();
+        } else if(magic == BINARY_PROTOCOL_MAGIC) {
+            return new BinaryMessageCodec();
+        } else if(magic == MULTIPLEXED_PROTOCOL_MAGIC) {
+            return new BinaryMessageCodec(true);
+        }
+        return null;
+    }
+
+    /**
+     * Maps the name of a wire protocol, as used in the properties files, onto its constant
+     *
+     * @param protocolName name of the protocol, OBJECT, FRAMED, BINARY or MULTIPLEXED
+     *
+     * @return the protocol constant, or 0 if the name is unknown
+     */
+    public static int parseProtocol(String protocolName) {
+        if(protocolName.equalsIgnoreCase("OBJECT")) {
+            return OBJECT_PROTOCOL;
+        } else if(protocolName.equalsIgnoreCase("FRAMED")) {
+            return FRAMED_PROTOCOL;
+        } else if(protocolName.equalsIgnoreCase("BINARY")) {
+            return BINARY_PROTOCOL;
+        } else if(protocolName.equalsIgnoreCase("MULTIPLEXED")) {
+            return MULTIPLEXED_PROTOCOL;
+        }
+        return 0;
+    }
+
+    // reads four bytes as little-endian int
+    static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+    }
+}
@@ -10,4 +10,15 @@ public interface MessageTypes extends TerminalColors {
     public static final int READ_REQUEST_RESPONSE = 5;
     public static final int TRANSACTION_COMMITTED = 6;
     public static final int TRANSACTION_ABORTED = 7;
+    public static final int CALL_PROCEDURE = 8;
+    public static final int MULTI_READ_REQUEST = 9;
+    public static final int MULTI_WRITE_REQUEST = 10;
+    public static final int MULTI_READ_RESPONSE = 11;
+    public static final int TOTAL_BALANCE_REQUEST = 12;
+    public static final int TOTAL_BALANCE_RESPONSE = 13;
+    public static final int STATS_REQUEST = 14;
+    public static final int STATS_RESPONSE = 15;
+
+    // flags an OPEN_TRANSACTION request may carry
+    public static final int READ_ONLY = 1;
 }
@@ -0,0 +1,87 @@
+package transaction.comm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * class [ObjectMessageConnection] speaks the original protocol: messages are written to a long-lived object
+ * stream, and the replies to OPEN_TRANSACTION and CLOSE_TRANSACTION are bare Integers, i.e. the transaction ID
+ * and the commit status, instead of Messages. The connection maps those onto Messages, so callers don't have
+ * to care about the protocol.
+ *
+ * @author surya
+ */
+public class ObjectMessageConnection extends MessageConnection {
+
+    ObjectInputStream readFromNet;
+    ObjectOutputStream writeToNet;
+
+    // whether this is the server side of the connection
+    final boolean serverSide;
+
+    // type of the last request, i.e. the last message read by the server or written by the client
+    int lastRequestType = 0;
+
+    ObjectMessageConnection(Socket socket, InputStream inputStream, boolean serverSide) throws IOException {
+        super(socket);
+        this.serverSide = serverSide;
+
+        // the server waits for the stream header of the client first, the client sends its header first
+        if(serverSide) {
+            readFromNet = new ObjectInputStream(inputStream);
+            writeToNet = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeToNet.flush();
+        } else {
+            writeToNet = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeToNet.flush();
+            readFromNet = new ObjectInputStream(inputStream);
+        }
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        Object object;
+        Message message;
+
+        try {
+            object = readFromNet.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("[ObjectMessageConnection.readMessage] Unknown object received", ex);
+        }
+
+        if(object instanceof Message) {
+            message = (Message) object;
+        } else if(lastRequestType == OPEN_TRANSACTION) {
+            // the transaction ID is the reply to OPEN_TRANSACTION
+            message = new Message(OPEN_TRANSACTION, object);
+        } else {
+            // the commit status is the reply to CLOSE_TRANSACTION
+            message = new Message((Integer) object, null);
+        }
+
+        if(serverSide) {
+            lastRequestType = message.getType();
+        }
+        return message;
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        if(serverSide && lastRequestType == OPEN_TRANSACTION && message.getType() == OPEN_TRANSACTION) {
+            writeToNet.writeObject(message.getContent());
+        } else if(serverSide && lastRequestType == CLOSE_TRANSACTION) {
+            writeToNet.writeObject((Integer) message.getType());
+        } else {
+            writeToNet.writeObject(message);
+        }
+        writeToNet.flush();
+
+        if(!serverSide) {
+            lastRequestType = message.getType();
+        }
+    }
+}
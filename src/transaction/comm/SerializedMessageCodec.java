@@ -0,0 +1,35 @@
+package transaction.comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * class [SerializedMessageCodec] encodes every message on its own with Java object serialization, so a
+ * message can be decoded from its frame alone, without the state of a long-lived object stream.
+ *
+ * @author surya
+ */
+public class SerializedMessageCodec implements MessageCodec {
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(payload)) {
+            objectOutputStream.writeObject(message);
+        }
+        return payload.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] payload, int offset, int length) throws IOException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            return (Message) objectInputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("[SerializedMessageCodec.decode] Frame doesn't hold a Message", ex);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package transaction.exception;
+
+/**
+ * class [SnapshotTooOldException] is thrown when a transaction reads an account as of its snapshot, but the
+ * version of the account it would see was already reclaimed. The transaction can't be served consistently and
+ * is aborted.
+ */
+public class SnapshotTooOldException extends RuntimeException {
+
+    /**
+     * Custom constructor
+     *
+     * @param accountNumber the account read
+     * @param snapshotNumber the transaction number the account was read as of
+     */
+    public SnapshotTooOldException(int accountNumber, int snapshotNumber) {
+        super("No version of account #" + accountNumber + " as of transaction " + snapshotNumber + " is left");
+    }
+}
@@ -0,0 +1,410 @@
+package transaction.server;
+
+import transaction.comm.Message;
+import transaction.comm.MessageCodec;
+import transaction.comm.MessageConnection;
+import transaction.comm.MessageTypes;
+import transaction.server.metrics.Metrics;
+import transaction.server.transaction.Transaction;
+import transaction.server.transaction.TransactionManager;
+import transaction.server.transaction.TransactionRequestHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * class [NioTransactionServer] serves clients with a selector-based acceptor and a small, fixed set of event loop
+ * threads instead of one thread per connection. Every connection is owned by one event loop, which reads its
+ * frames, runs them through the connection's TransactionRequestHandler and writes the replies without blocking.
+ * Only the framed wire protocols (FRAMED, BINARY and MULTIPLEXED) can be served, as frames can be decoded
+ * independently of each other.
+ *
+ * @author surya
+ */
+public class NioTransactionServer implements Runnable, MessageTypes {
+
+    // initial size of the input buffer of a connection
+    static final int INITIAL_BUFFER_SIZE = 4096;
+
+    // listening channel
+    final ServerSocketChannel serverChannel;
+
+    // event loops the accepted connections are distributed over
+    final EventLoop[] eventLoops;
+
+    /**
+     * Custom constructor
+     *
+     * @param serverChannel bound server socket channel
+     * @param numberOfEventLoops number of event loop threads
+     */
+    public NioTransactionServer(ServerSocketChannel serverChannel, int numberOfEventLoops) throws IOException {
+        this.serverChannel = serverChannel;
+        this.eventLoops = new EventLoop[numberOfEventLoops];
+
+        for(int i = 0; i < numberOfEventLoops; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Runs the acceptor: accepts connections and hands them to the event loops round robin
+     */
+    @Override
+    public void run() {
+        int nextEventLoop = 0;
+        SocketChannel channel;
+
+        for(EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                while((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    eventLoops[nextEventLoop].register(channel);
+                    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[NioTransactionServer.run] Error while accepting connections");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * class [EventLoop] owns a selector and all connections registered with it. Other threads only talk to an
+     * event loop by queueing tasks, which the loop runs on its own thread.
+     */
+    static class EventLoop extends Thread {
+
+        final Selector selector;
+
+        // tasks queued by other threads
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("EventLoop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Hands a freshly accepted connection to this event loop
+         *
+         * @param channel the connection, in non-blocking mode
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    System.err.println("[NioTransactionServer.EventLoop.register] Error registering a connection");
+                }
+            });
+        }
+
+        /**
+         * Queues a task to be run on this event loop
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            Iterator<SelectionKey> selectedKeys;
+            SelectionKey key;
+            Connection connection;
+            Runnable task;
+
+            while(true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("[NioTransactionServer.EventLoop.run] Selector failed");
+                    e.printStackTrace();
+                    return;
+                }
+
+                // a failing task must not end the loop, the other connections are still served by it
+                while((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[NioTransactionServer.EventLoop.run] Error running a task");
+                        e.printStackTrace();
+                    }
+                }
+
+                selectedKeys = selector.selectedKeys().iterator();
+                while(selectedKeys.hasNext()) {
+                    key = selectedKeys.next();
+                    selectedKeys.remove();
+                    connection = (Connection) key.attachment();
+
+                    try {
+                        if(key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if(key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // a malformed request only closes its own connection, giving up its transactions
+                        System.err.println("[NioTransactionServer.EventLoop.run] Error serving a connection, closing it");
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * class [Connection] is the per-connection state machine of an event loop: it waits for the protocol magic,
+     * then decodes frames as they become complete, processes them in order and queues the replies. While an
+     * untagged transaction is being committed no further frames are processed, so replies keep the order of
+     * requests; tagged replies are matched by their request ID and don't need to wait.
+     */
+    static class Connection {
+
+        final EventLoop eventLoop;
+        final SocketChannel channel;
+        SelectionKey key;
+
+        // received bytes not processed yet, kept in read mode between calls
+        ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // encoded replies waiting to be written
+        final Queue<ByteBuffer> output = new ArrayDeque<>();
+
+        // codec of the protocol the client speaks, null until the magic was received
+        MessageCodec codec = null;
+
+        // processes the requests of the client, never blocking the event loop for a transaction
+        final TransactionRequestHandler requestHandler = new TransactionRequestHandler(false);
+
+        // whether a commit is in progress, or the connection is closed
+        boolean commitPending = false;
+        boolean closed = false;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            input.flip();
+        }
+
+        /**
+         * Reads what is available from the channel and processes all complete frames
+         */
+        void read() throws IOException {
+            input.compact();
+            int read = channel.read(input);
+            input.flip();
+
+            if(read < 0) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        /**
+         * Processes the complete frames in the input buffer
+         */
+        void processInput() throws IOException {
+            int length;
+            Message message;
+
+            if(codec == null) {
+                if(input.remaining() < MessageConnection.MAGIC_LENGTH) {
+                    return;
+                }
+                codec = MessageConnection.codecFor(input.getInt());
+                if(codec == null) {
+                    throw new IOException("[NioTransactionServer.Connection.processInput] Unsupported protocol");
+                }
+            }
+
+            while(!commitPending && input.remaining() >= MessageConnection.FRAME_HEADER_LENGTH) {
+                length = input.getInt(input.position());
+
+                if(length < 0 || length > MessageConnection.MAX_FRAME_LENGTH) {
+                    throw new IOException("[NioTransactionServer.Connection.processInput] Invalid frame length " + length);
+                }
+
+                if(input.remaining() < MessageConnection.FRAME_HEADER_LENGTH + length) {
+                    // make sure the whole frame fits into the buffer
+                    if(input.capacity() < MessageConnection.FRAME_HEADER_LENGTH + length) {
+                        input = ByteBuffer.allocate(MessageConnection.FRAME_HEADER_LENGTH + length)
+                                .order(ByteOrder.LITTLE_ENDIAN).put(input);
+                        input.flip();
+                    }
+                    return;
+                }
+
+                message = codec.decode(input.array(), input.arrayOffset() + input.position() + MessageConnection.FRAME_HEADER_LENGTH, length);
+                input.position(input.position() + MessageConnection.FRAME_HEADER_LENGTH + length);
+
+                dispatch(message);
+            }
+        }
+
+        /**
+         * Processes one request. Commits may complete on another thread, their reply is then handed back to this
+         * event loop.
+         *
+         * @param message the request
+         */
+        void dispatch(Message message) throws IOException {
+            Message reply;
+
+            if(message.getType() == CLOSE_TRANSACTION || message.getType() == CALL_PROCEDURE) {
+                Transaction transaction;
+                Integer result = null;
+
+                if(message.getType() == CALL_PROCEDURE) {
+                    transaction = TransactionManager.openTransaction();
+                    result = requestHandler.runProcedure(message, transaction);
+
+                    if(result == null) {
+                        send(requestHandler.reply(message, null, TRANSACTION_ABORTED, null));
+                        return;
+                    }
+                } else {
+                    transaction = requestHandler.getTransaction(message);
+
+                    // the transaction was given up early
+                    if(transaction == null) {
+                        send(requestHandler.reply(message, null, TRANSACTION_ABORTED, null));
+                        return;
+                    }
+                }
+
+                // tagged requests carry their transaction, so only untagged ones have to wait for the commit
+                boolean tagged = message.getRequestID() != 0;
+                if(!tagged) {
+                    commitPending = true;
+                }
+
+                Integer procedureResult = result;
+                requestHandler.commitAsync(transaction).whenComplete((committed, failure) -> eventLoop.execute(() -> {
+                    // a commit that failed, e.g. with its group commit batch, is closed as aborted
+                    if(failure != null) {
+                        System.err.println("[NioTransactionServer.Connection.dispatch] Commit of transaction #"
+                                + transaction.getTransactionID() + " failed, reporting it as aborted");
+                        failure.printStackTrace();
+                    }
+                    Message closeReply = requestHandler.finishClose(message, transaction, failure == null && committed,
+                            procedureResult);
+
+                    if(!tagged) {
+                        commitPending = false;
+                    }
+                    if(closed) {
+                        return;
+                    }
+
+                    try {
+                        send(closeReply);
+                        processInput();
+                    } catch (IOException e) {
+                        close();
+                    } catch (RuntimeException e) {
+                        System.err.println("[NioTransactionServer.Connection.dispatch] Error serving a connection, closing it");
+                        e.printStackTrace();
+                        close();
+                    }
+                }));
+                return;
+            }
+
+            reply = requestHandler.handle(message);
+            if(reply != null) {
+                send(reply);
+            }
+        }
+
+        /**
+         * Queues a reply and writes as much as the channel takes
+         *
+         * @param message the reply
+         */
+        void send(Message message) throws IOException {
+            long startTime = Metrics.startTimer();
+            byte[] payload;
+            ByteBuffer frame;
+
+            payload = codec.encode(message);
+            frame = ByteBuffer.allocate(MessageConnection.FRAME_HEADER_LENGTH + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+            frame.putInt(payload.length).put(payload).flip();
+
+            output.add(frame);
+            flush();
+            Metrics.recordPhase(Metrics.REPLY, startTime);
+        }
+
+        /**
+         * Writes queued replies until the channel stops taking bytes; waits for the channel to become writable
+         * again if there is something left
+         */
+        void flush() throws IOException {
+            ByteBuffer frame;
+
+            while((frame = output.peek()) != null) {
+                channel.write(frame);
+                if(frame.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and gives up its open transactions. Transactions that are being committed are
+         * left to their commit, which is finished when it completes.
+         */
+        void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+
+            requestHandler.abandon();
+
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("[NioTransactionServer.Connection.close] Error closing a connection");
+            }
+        }
+    }
+}
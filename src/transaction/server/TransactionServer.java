@@ -1,13 +1,19 @@
 package transaction.server;
 
 import transaction.server.account.AccountManager;
+import transaction.server.event.EventLog;
+import transaction.server.event.FlightEvents;
+import transaction.server.metrics.Metrics;
+import transaction.server.metrics.MetricsHttpServer;
 import transaction.server.transaction.TransactionManager;
 import utils.NetworkUtilities;
 import utils.PropertyHandler;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Properties;
 
 /**
@@ -28,6 +34,9 @@ public class TransactionServer implements Runnable {
     // server connection
     static ServerSocket transactionServerSocket;
 
+    // event loop server, only used when SERVER_MODE is NIO
+    static NioTransactionServer nioTransactionServer;
+
     public static int numberOfAccounts;
 
     // fetch serverIP
@@ -58,17 +67,37 @@ public class TransactionServer implements Runnable {
         accountManager = new AccountManager(numberOfAccounts, initialBalance);
         System.out.println("[TransactionServer.TransactionServer] Account Manager created");
 
+        // start recording transaction events and metrics, before any transaction runs
+        EventLog.start(properties);
+        Metrics.configure(properties);
+        FlightEvents.configure(properties);
+
         // create transaction manager
-        transactionManager = new TransactionManager();
+        transactionManager = new TransactionManager(properties);
 
         System.out.println("[TransactionServer.TransactionServer] Transaction Manager created");
 
+        // serve the metrics over HTTP, once the transaction manager registered its gauges
+        MetricsHttpServer.start(properties);
+
         try {
             // get port
             int port = Integer.parseInt(properties.getProperty("PORT"));
 
-            // create server socket
-            transactionServerSocket = new ServerSocket(port, 50, InetAddress.getByName(serverIP));
+            // get length of the accept queue
+            int backlog = Integer.parseInt(properties.getProperty("SERVER_BACKLOG", "50"));
+
+            // create server socket, either served by one thread per connection or by event loops
+            if(properties.getProperty("SERVER_MODE", "THREADED").equalsIgnoreCase("NIO")) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(InetAddress.getByName(serverIP), port), backlog);
+
+                nioTransactionServer = new NioTransactionServer(serverChannel,
+                        Integer.parseInt(properties.getProperty("EVENT_LOOP_THREADS", "4")));
+                System.out.println("[TransactionServer.TransactionServer] NIO server created");
+            } else {
+                transactionServerSocket = new ServerSocket(port, backlog, InetAddress.getByName(serverIP));
+            }
         } catch (IOException e) {
             System.out.println("[TransactionServer.TransactionServer] couldn't create server socket");
             System.exit(1);
@@ -82,6 +111,11 @@ public class TransactionServer implements Runnable {
      */
     @Override
     public void run() {
+        if(nioTransactionServer != null) {
+            nioTransactionServer.run();
+            return;
+        }
+
         try {
             while (true) {
                 transactionManager.runTransaction(transactionServerSocket.accept());
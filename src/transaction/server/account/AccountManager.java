@@ -1,34 +1,74 @@
 package transaction.server.account;
 
-import java.util.ArrayList;
-import java.util.List;
+import transaction.exception.SnapshotTooOldException;
+import utils.IntSet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * class [AccountManager] maintains a list of accounts and provides methods to read and write account balance.
+ * class [AccountManager] maintains the accounts and provides methods to read and write account balance.
+ * Accounts are numbered densely from 1 to numberOfAccounts, so balances are kept in a primitive array
+ * indexed by the account number, which makes every lookup O(1) and avoids boxing the balances.
+ * With snapshot reads enabled, every write keeps the overwritten balance in a short chain of older versions of
+ * the account, so a transaction can read the accounts as they were when it started. Versions no running
+ * transaction can see anymore are reclaimed.
+ * The sum of all balances is kept as a running total, which committing transactions adjust by the change their
+ * write set makes to it, so it is known without reading every account.
  *
  * @author bhavana and surya
  */
 public class AccountManager {
 
-    // list of accounts
-    List<Account> accounts = new ArrayList<>();
+    // balances indexed by account number; slot 0 is unused as accounts are numbered from 1
+    int[] balances;
+
+    // number of the last committed transaction that wrote each account, indexed by account number
+    int[] versions;
+
+    // number of accounts held by this manager
+    int numberOfAccounts;
+
+    // sum of all balances, adjusted once per committed transaction by the change of its write set
+    final AtomicLong totalBalance = new AtomicLong(0);
+
+    // number of latches guarding the accounts, accounts are mapped onto them by their account number
+    static final int NUMBER_OF_LATCHES = 1024;
+
+    // latches keeping balance and version of an account consistent and serializing commits on an account
+    final ReentrantLock[] latches = new ReentrantLock[NUMBER_OF_LATCHES];
+
+    // older versions of each account, newest first, indexed by account number; null while snapshot reads are off
+    AccountVersion[] olderVersions = null;
+
+    // accounts having older versions, swept by reclaimVersions; only touched while holding this manager's monitor
+    IntSet accountsWithOlderVersions = new IntSet();
+
+    // oldest transaction number a running transaction may read as of, older versions below it are reclaimed
+    volatile int lowWatermark = 0;
 
     // default constructor
     public AccountManager() {
-        this.accounts = new ArrayList<>();
+        this(0, 0);
     }
 
     /**
-     * Custom constructor that initializes the list of accounts with a given number of accounts and an initial balance
+     * Custom constructor that initializes the accounts with a given number of accounts and an initial balance
      * for each account.
      *
      * @param numberOfAccounts The number of accounts to create.
      * @param initialBalance The initial balance for each account.
      */
     public AccountManager(int numberOfAccounts, int initialBalance) {
-        for(int i = 1; i <= numberOfAccounts; i++) {
-            Account account = new Account(i, initialBalance);
-            this.accounts.add(account);
+        this.numberOfAccounts = numberOfAccounts;
+        this.balances = new int[numberOfAccounts + 1];
+        this.versions = new int[numberOfAccounts + 1];
+        Arrays.fill(balances, 1, numberOfAccounts + 1, initialBalance);
+        totalBalance.set((long) numberOfAccounts * initialBalance);
+
+        for(int i = 0; i < NUMBER_OF_LATCHES; i++) {
+            latches[i] = new ReentrantLock();
         }
     }
 
@@ -36,12 +76,11 @@ public class AccountManager {
      * Returns the balance of the account with the specified account number.
      *
      * @param accountNumber The account number of the account to get the balance for.
-     * @return The balance of the account, or null if the account is not found.
+     * @return The balance of the account.
      */
-    public Integer read(int accountNumber) {
-        Account account = getAccountByAccountNumber(accountNumber);
-        if(account != null) {
-            return account.getBalance();
+    public int read(int accountNumber) {
+        if(isValidAccount(accountNumber)) {
+            return balances[accountNumber];
         } else {
             System.err.println("Invalid Account; Account# " + accountNumber + " doesn't exists");
             System.exit(1);
@@ -57,9 +96,8 @@ public class AccountManager {
      * @return True if the write was successful, false otherwise.
      */
     public boolean write(int accountNumber, int balance) {
-        Account account = getAccountByAccountNumber(accountNumber);
-        if(account != null) {
-            account.setBalance(balance);
+        if(isValidAccount(accountNumber)) {
+            balances[accountNumber] = balance;
             return true;
         } else {
             System.err.println("Invalid Account; Account# " + accountNumber + " doesn't exists");
@@ -69,18 +107,327 @@ public class AccountManager {
     }
 
     /**
-     * Helper method that returns the account with the specified account number.
+     * Writes the specified balance to the account with the specified account number and records the
+     * transaction number of the committed transaction that wrote it as the version of the account.
+     * The running total is left to the caller, which adjusts it once for the whole write set.
+     *
+     * @param accountNumber The account number of the account to write the balance to.
+     * @param balance The balance to write to the account.
+     * @param transactionNumber The transaction number of the committed transaction writing the balance.
+     * @return The balance the account had before.
+     */
+    public int write(int accountNumber, int balance, int transactionNumber) {
+        ReentrantLock latch = latches[latchIndex(accountNumber)];
+        int oldBalance;
+
+        latch.lock();
+        try {
+            // keep the overwritten balance for transactions still reading as of an older transaction number
+            if(olderVersions != null && isValidAccount(accountNumber)) {
+                olderVersions[accountNumber] = new AccountVersion(versions[accountNumber], balances[accountNumber],
+                        olderVersions[accountNumber]);
+                prune(accountNumber, transactionNumber);
+            }
+
+            oldBalance = read(accountNumber);
+            write(accountNumber, balance);
+            versions[accountNumber] = transactionNumber;
+            return oldBalance;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Turns on snapshot reads: from now on, writes keep the versions they overwrite
+     */
+    public void enableSnapshotReads() {
+        olderVersions = new AccountVersion[numberOfAccounts + 1];
+    }
+
+    /**
+     * Returns the balance of an account together with its version as they were after the transaction with the
+     * given number committed, packed like readWithVersion. Without snapshot reads the current ones are returned.
+     * Only a version not newer than the snapshot is ever returned: if the chain was pruned past the snapshot, the
+     * read fails.
      *
-     * @param accountNumber The account number of the account to get.
-     * @return The account with the specified account number, or null if the account is not found.
+     * @param accountNumber The account number of the account to read.
+     * @param snapshotNumber The transaction number to read the account as of.
+     * @return The version and balance of the account packed into a long.
+     * @throws SnapshotTooOldException if the version as of the snapshot was reclaimed.
      */
-    private Account getAccountByAccountNumber(int accountNumber) {
-        for(Account account : accounts) {
-            if(account.getAccountNumber() == accountNumber) {
-                return account;
+    public long readAsOf(int accountNumber, int snapshotNumber) {
+        ReentrantLock latch;
+        AccountVersion olderVersion;
+
+        if(!isValidAccount(accountNumber)) {
+            System.err.println("Invalid Account; Account# " + accountNumber + " doesn't exists");
+            System.exit(1);
+            return -1;
+        }
+
+        latch = latches[latchIndex(accountNumber)];
+        latch.lock();
+        try {
+            if(olderVersions == null || versions[accountNumber] <= snapshotNumber) {
+                return ((long) versions[accountNumber] << 32) | (balances[accountNumber] & 0xFFFFFFFFL);
+            }
+
+            // versions are chained newest first, the first one not newer than the snapshot is the one to read
+            for(olderVersion = olderVersions[accountNumber]; olderVersion != null; olderVersion = olderVersion.older) {
+                if(olderVersion.version <= snapshotNumber) {
+                    return ((long) olderVersion.version << 32) | (olderVersion.balance & 0xFFFFFFFFL);
+                }
             }
+        } finally {
+            latch.unlock();
+        }
+
+        // the versions a running transaction can read are never reclaimed, so this is a bug, not a conflict
+        System.out.println("[AccountManager.readAsOf] No version of account #" + accountNumber
+                + " as of transaction " + snapshotNumber + " is left, the low watermark is " + lowWatermark);
+        throw new SnapshotTooOldException(accountNumber, snapshotNumber);
+    }
+
+    /**
+     * Reclaims the older versions no running transaction can read anymore
+     *
+     * @param lowWatermark the oldest transaction number a running transaction reads as of
+     */
+    public void reclaimVersions(int lowWatermark) {
+        IntSet accounts;
+        ReentrantLock latch;
+        int accountNumber;
+
+        this.lowWatermark = lowWatermark;
+        if(olderVersions == null) {
+            return;
+        }
+
+        synchronized (this) {
+            accounts = accountsWithOlderVersions;
+            accountsWithOlderVersions = new IntSet(accounts.size());
+        }
+
+        for(int index = 0; index < accounts.size(); index++) {
+            accountNumber = accounts.get(index);
+            latch = latches[latchIndex(accountNumber)];
+
+            latch.lock();
+            try {
+                prune(accountNumber, versions[accountNumber]);
+            } finally {
+                latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops the older versions of an account that no running transaction can read; the caller holds the latch of
+     * the account. The newest version not newer than the low watermark is the oldest one still readable.
+     *
+     * @param accountNumber The account number of the account to prune.
+     * @param newestVersion The version of the account after the caller is done.
+     */
+    private void prune(int accountNumber, int newestVersion) {
+        int watermark = lowWatermark;
+        AccountVersion olderVersion;
+
+        if(newestVersion <= watermark) {
+            olderVersions[accountNumber] = null;
+            return;
+        }
+
+        for(olderVersion = olderVersions[accountNumber]; olderVersion != null; olderVersion = olderVersion.older) {
+            if(olderVersion.version <= watermark) {
+                olderVersion.older = null;
+                break;
+            }
+        }
+
+        if(olderVersions[accountNumber] != null) {
+            synchronized (this) {
+                accountsWithOlderVersions.add(accountNumber);
+            }
+        }
+    }
+
+    /**
+     * Sets balance and version of an account while the server recovers, before any transaction runs, so no latch
+     * is taken.
+     *
+     * @param accountNumber The account number of the account to restore.
+     * @param balance The recovered balance.
+     * @param version The recovered version.
+     */
+    public void restore(int accountNumber, int balance, int version) {
+        totalBalance.addAndGet((long) balance - balances[accountNumber]);
+        balances[accountNumber] = balance;
+        versions[accountNumber] = version;
+    }
+
+    /**
+     * Returns the balance of the account with the specified account number together with its version, read
+     * consistently under the latch of the account. The version is packed into the upper and the balance
+     * into the lower 32 bits, so no object has to be allocated.
+     *
+     * @param accountNumber The account number of the account to read.
+     * @return The version and balance of the account packed into a long.
+     */
+    public long readWithVersion(int accountNumber) {
+        ReentrantLock latch = latches[latchIndex(accountNumber)];
+
+        latch.lock();
+        try {
+            return ((long) getVersion(accountNumber) << 32) | (read(accountNumber) & 0xFFFFFFFFL);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires the latches of the given accounts. Latches are taken in ascending order, so two committing
+     * transactions can never deadlock, and every latch is taken once even if several accounts share it.
+     *
+     * @param accountNumbers The account numbers of the accounts to latch.
+     * @return The indices of the acquired latches, to be passed to unlockAccounts.
+     */
+    public int[] lockAccounts(int[] accountNumbers) {
+        int[] latchIndices = new int[accountNumbers.length];
+        int numberOfLatches = 0;
+
+        for(int i = 0; i < accountNumbers.length; i++) {
+            latchIndices[i] = latchIndex(accountNumbers[i]);
+        }
+        Arrays.sort(latchIndices);
+
+        // remove duplicates, the indices are sorted
+        for(int i = 0; i < latchIndices.length; i++) {
+            if(i == 0 || latchIndices[i] != latchIndices[i - 1]) {
+                latchIndices[numberOfLatches++] = latchIndices[i];
+            }
+        }
+        latchIndices = Arrays.copyOf(latchIndices, numberOfLatches);
+
+        for(int latchIndex : latchIndices) {
+            latches[latchIndex].lock();
+        }
+        return latchIndices;
+    }
+
+    /**
+     * Acquires the latches of all accounts, in the same order as lockAccounts. A commit holding the latches of
+     * its accounts while it installs its whole write set can then neither be halfway nor start installing.
+     *
+     * @return The indices of the acquired latches, to be passed to unlockAccounts.
+     */
+    public int[] lockAllAccounts() {
+        int[] latchIndices = new int[NUMBER_OF_LATCHES];
+
+        for(int i = 0; i < NUMBER_OF_LATCHES; i++) {
+            latchIndices[i] = i;
+            latches[i].lock();
+        }
+        return latchIndices;
+    }
+
+    /**
+     * Releases the latches acquired by lockAccounts.
+     *
+     * @param latchIndices The indices of the latches returned by lockAccounts.
+     */
+    public void unlockAccounts(int[] latchIndices) {
+        for(int i = latchIndices.length - 1; i >= 0; i--) {
+            latches[latchIndices[i]].unlock();
+        }
+    }
+
+    /**
+     * Returns the version of the account with the specified account number, i.e. the transaction number of
+     * the last committed transaction that wrote it, or 0 if it was never written.
+     *
+     * @param accountNumber The account number of the account to get the version for.
+     * @return The version of the account.
+     */
+    public int getVersion(int accountNumber) {
+        if(isValidAccount(accountNumber)) {
+            return versions[accountNumber];
+        } else {
+            System.err.println("Invalid Account; Account# " + accountNumber + " doesn't exists");
+            System.exit(1);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the running total of all balances.
+     *
+     * @return the total balance
+     */
+    public long getTotalBalance() {
+        return totalBalance.get();
+    }
+
+    /**
+     * Adjusts the running total of all balances by the change a committed write set made to it.
+     *
+     * @param delta the sum of the new balances minus the sum of the balances they replaced
+     */
+    public void addToTotalBalance(long delta) {
+        totalBalance.addAndGet(delta);
+    }
+
+    /**
+     * Sums the balances of all accounts. The result is only consistent if no commit installs a write set
+     * meanwhile, the caller holds the commit lock or the latches of all accounts.
+     *
+     * @return the sum of all balances
+     */
+    public long sumBalances() {
+        long sum = 0;
+
+        for(int account = 1; account <= numberOfAccounts; account++) {
+            sum += balances[account];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of accounts held by this manager.
+     *
+     * @return the number of accounts
+     */
+    public int getNumberOfAccounts() {
+        return numberOfAccounts;
+    }
+
+    // maps an account number onto the index of its latch
+    private static int latchIndex(int accountNumber) {
+        return accountNumber & (NUMBER_OF_LATCHES - 1);
+    }
+
+    /**
+     * Helper method that checks whether an account with the specified account number exists.
+     *
+     * @param accountNumber The account number to check.
+     * @return True if the account exists, false otherwise.
+     */
+    private boolean isValidAccount(int accountNumber) {
+        return accountNumber >= 1 && accountNumber <= numberOfAccounts;
+    }
+
+    /**
+     * class [AccountVersion] is an overwritten version of an account, kept for snapshot reads
+     */
+    static class AccountVersion {
+        final int version;
+        final int balance;
+        AccountVersion older;
+
+        AccountVersion(int version, int balance, AccountVersion older) {
+            this.version = version;
+            this.balance = balance;
+            this.older = older;
         }
-        // handle it saying AccountNotFound or Invalid account
-        return null;
     }
 }
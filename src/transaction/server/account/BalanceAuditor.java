@@ -0,0 +1,122 @@
+package transaction.server.account;
+
+/**
+ * class [BalanceAuditor] periodically checks the running total of the account manager against the sum of all
+ * balances. Both are read on a consistent snapshot: while they are read no commit can be halfway through
+ * installing its write set, so a difference is a drift of the running total, which is reported.
+ * Commits installing under the commit lock are held off by taking the commit lock, parallel commits, which
+ * install under the latches of their accounts, by taking the latches of all accounts. Either way all commits
+ * stall for one pass over the balance array, about half a millisecond per million accounts, so audits are off by
+ * default and meant as a check to run now and then rather than all the time.
+ * Audits and drifts are reported through the metrics, as the gauges balance_audits, balance_audit_drifts and
+ * balance_audit_last_drift.
+ *
+ * @author surya and dheeraj
+ */
+public class BalanceAuditor extends Thread {
+
+    final AccountManager accountManager;
+
+    // lock commits install their write sets under, null if they install under the latches of their accounts
+    final Object commitLock;
+
+    // time between two audits, in milliseconds
+    final long auditInterval;
+
+    // number of audits taken, and of those that found a drift
+    volatile long audits = 0;
+    volatile long drifts = 0;
+
+    // running total minus the sum of the balances, as found by the last audit that found a drift
+    volatile long lastDrift = 0;
+
+    /**
+     * Custom constructor
+     *
+     * @param accountManager the accounts to audit
+     * @param commitLock lock commits install their write sets under, null if they install under the latches of
+     *                   their accounts
+     * @param auditInterval time between two audits, in milliseconds
+     */
+    public BalanceAuditor(AccountManager accountManager, Object commitLock, long auditInterval) {
+        super("BalanceAuditor");
+        this.accountManager = accountManager;
+        this.commitLock = commitLock;
+        this.auditInterval = auditInterval;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                Thread.sleep(auditInterval);
+            } catch (InterruptedException ex) {
+                System.out.println("[BalanceAuditor.run] Interrupted, stopping audits");
+                return;
+            }
+            audit();
+        }
+    }
+
+    /**
+     * Compares the running total with the sum of all balances, on a consistent snapshot
+     *
+     * @return true if they match, false if the running total drifted
+     */
+    public boolean audit() {
+        long runningTotal;
+        long sum;
+        int[] latches;
+
+        if(commitLock != null) {
+            synchronized (commitLock) {
+                runningTotal = accountManager.getTotalBalance();
+                sum = accountManager.sumBalances();
+            }
+        } else {
+            latches = accountManager.lockAllAccounts();
+            try {
+                runningTotal = accountManager.getTotalBalance();
+                sum = accountManager.sumBalances();
+            } finally {
+                accountManager.unlockAccounts(latches);
+            }
+        }
+        audits++;
+
+        if(runningTotal != sum) {
+            lastDrift = runningTotal - sum;
+            drifts++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of audits taken
+     *
+     * @return the number of audits
+     */
+    public long getAudits() {
+        return audits;
+    }
+
+    /**
+     * Returns the number of audits that found a drift
+     *
+     * @return the number of drifts
+     */
+    public long getDrifts() {
+        return drifts;
+    }
+
+    /**
+     * Returns the drift found by the last audit that found one
+     *
+     * @return the running total minus the sum of the balances, 0 if no drift was found
+     */
+    public long getLastDrift() {
+        return lastDrift;
+    }
+}
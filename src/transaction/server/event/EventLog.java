@@ -0,0 +1,314 @@
+package transaction.server.event;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * class [EventLog] records what transactions do as fixed-size binary events instead of building strings in the
+ * request path. An event is a type, a transaction ID, an account number, a value and a timestamp; recording it
+ * only claims a slot of a lock-free ring buffer and fills in the fields. A background thread renders the events
+ * to the event log file, in the order they were recorded.
+ *
+ * Every event type has a level, events above the configured level are not recorded at all:
+ *   OFF     nothing is recorded
+ *   INFO    opening, committing and aborting transactions, conflicts
+ *   DEBUG   also every read and write, validation and installation of write sets, lock waits
+ *
+ * A producer never waits for the writer: when the buffer is full the event is dropped and counted. The writer
+ * reports dropped events, and the highest backlog it found in the buffer, in the log and on the console.
+ * An idle writer backs off, parking longer and longer up to MAX_PARK_NANOS, so a quiet server isn't woken up
+ * every millisecond; the producer filling a quarter of the buffer wakes it up early.
+ *
+ * @author surya and dheeraj
+ */
+public class EventLog extends Thread {
+
+    // levels
+    public static final int OFF = 0;
+    public static final int INFO = 1;
+    public static final int DEBUG = 2;
+
+    // event types
+    public static final int OPEN = 0;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int CALL_PROCEDURE = 3;
+    public static final int VALIDATED = 4;
+    public static final int CONFLICT = 5;
+    public static final int WRITTEN = 6;
+    public static final int COMMIT = 7;
+    public static final int ABORT = 8;
+    public static final int EARLY_ABORT = 9;
+    public static final int LOCK_SKIPPED = 10;
+
+    // name, level and meaning of the account and value fields of each event type, null if a field is not used
+    static final String[] EVENT_NAMES = {"OPEN", "READ", "WRITE", "CALL_PROCEDURE", "VALIDATED", "CONFLICT",
+            "WRITTEN", "COMMIT", "ABORT", "EARLY_ABORT", "LOCK_SKIPPED"};
+    static final int[] EVENT_LEVELS = {INFO, DEBUG, DEBUG, INFO, DEBUG, INFO, DEBUG, INFO, INFO, INFO, DEBUG};
+    static final String[] ACCOUNT_NAMES = {null, "account", "account", null, null, "account", "account", null, null,
+            null, "account"};
+    static final String[] VALUE_NAMES = {"read-only", "balance", "balance", "arguments", null, "number",
+            "balance", "number", null, "doomed", "owner"};
+
+    // how often dropped events are reported, in milliseconds
+    static final long REPORT_INTERVAL = 1000;
+
+    // how long the writer parks after rendering events, and at most once it found none for a while
+    static final long MIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // the event log in use, null if the level is OFF
+    static EventLog eventLog = null;
+
+    final int level;
+    final Writer writer;
+
+    // ring buffer of events, one array per field, indexed by sequence number & mask
+    final int mask;
+    final int[] types;
+    final int[] transactionIDs;
+    final int[] accounts;
+    final int[] values;
+    final long[] timestamps;
+
+    // sequence number + 1 of the event in each slot, once its fields are filled in
+    final AtomicLongArray published;
+
+    // sequence numbers claimed by producers and consumed by the writer
+    final AtomicLong claimed = new AtomicLong(0);
+    volatile long consumed = 0;
+
+    // events dropped because the buffer was full
+    final AtomicLong droppedEvents = new AtomicLong(0);
+
+    // highest number of events found waiting in the buffer
+    volatile long highestBacklog = 0;
+
+    // start of the timestamps
+    final long startTime = System.nanoTime();
+
+    /**
+     * Custom constructor
+     *
+     * @param level highest level of the events recorded
+     * @param writer where the events are rendered to
+     * @param capacity capacity of the buffer in events, rounded up to a power of two
+     */
+    EventLog(int level, Writer writer, int capacity) {
+        super("EventLog");
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.level = level;
+        this.writer = writer;
+        this.mask = size - 1;
+        this.types = new int[size];
+        this.transactionIDs = new int[size];
+        this.accounts = new int[size];
+        this.values = new int[size];
+        this.timestamps = new long[size];
+        this.published = new AtomicLongArray(size);
+        setDaemon(true);
+    }
+
+    /**
+     * Starts the event log configured in the server properties. Called once at startup, before any transaction
+     * runs.
+     *
+     * @param properties the server properties
+     */
+    public static void start(Properties properties) {
+        String levelName = properties.getProperty("EVENT_LOG_LEVEL", "INFO");
+        int level;
+
+        if(levelName.equalsIgnoreCase("OFF")) {
+            return;
+        } else if(levelName.equalsIgnoreCase("INFO")) {
+            level = INFO;
+        } else if(levelName.equalsIgnoreCase("DEBUG")) {
+            level = DEBUG;
+        } else {
+            System.out.println("[EventLog.start] Unknown EVENT_LOG_LEVEL " + levelName);
+            System.exit(1);
+            return;
+        }
+
+        try {
+            eventLog = new EventLog(level,
+                    new BufferedWriter(new FileWriter(properties.getProperty("EVENT_LOG_FILE", "events.log"), true), 1 << 16),
+                    Integer.parseInt(properties.getProperty("EVENT_LOG_BUFFER_SIZE", "65536")));
+        } catch (IOException ex) {
+            System.out.println("[EventLog.start] couldn't open the event log file");
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        eventLog.start();
+    }
+
+    /**
+     * Records an event, if its level is enabled
+     *
+     * @param type the event type
+     * @param transactionID ID of the transaction
+     * @param account account number, 0 if the event type has none
+     * @param value value, as named for the event type, 0 if it has none
+     */
+    public static void record(int type, int transactionID, int account, int value) {
+        EventLog log = eventLog;
+
+        if(log != null && EVENT_LEVELS[type] <= log.level) {
+            log.append(type, transactionID, account, value);
+        }
+    }
+
+    /**
+     * Checks whether events of a level are recorded, to skip preparing events that wouldn't be
+     *
+     * @param level the level
+     *
+     * @return true if events of the level are recorded
+     */
+    public static boolean isEnabled(int level) {
+        EventLog log = eventLog;
+
+        return log != null && level <= log.level;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full
+     *
+     * @return the number of dropped events, 0 if there is no event log
+     */
+    public static long getDroppedEvents() {
+        EventLog log = eventLog;
+
+        return log == null ? 0 : log.droppedEvents.get();
+    }
+
+    // claims the next slot and fills it in, or drops the event if the buffer is full
+    private void append(int type, int transactionID, int account, int value) {
+        long sequence;
+        int slot;
+
+        do {
+            sequence = claimed.get();
+
+            if(sequence - consumed > mask) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+        } while(!claimed.compareAndSet(sequence, sequence + 1));
+
+        slot = (int) sequence & mask;
+        types[slot] = type;
+        transactionIDs[slot] = transactionID;
+        accounts[slot] = account;
+        values[slot] = value;
+        timestamps[slot] = System.nanoTime();
+
+        // the writer reads the fields only after it sees the slot published
+        published.lazySet(slot, sequence + 1);
+
+        // a backed off writer is woken up before the buffer fills
+        if(sequence - consumed == (mask + 1) / 4) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        StringBuilder line = new StringBuilder(128);
+        long next = 0;
+        long reportedDrops = 0;
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+        long parkNanos = MIN_PARK_NANOS;
+        long drops;
+        int slot;
+        boolean rendered;
+        boolean unflushed = false;
+
+        while(true) {
+            try {
+                highestBacklog = Math.max(highestBacklog, claimed.get() - next);
+
+                slot = (int) next & mask;
+                rendered = false;
+                while(published.get(slot) == next + 1) {
+                    render(line, slot);
+                    writer.append(line);
+                    rendered = true;
+
+                    next++;
+                    slot = (int) next & mask;
+
+                    // free the slots in chunks, so producers see the space without a volatile write per event
+                    if((next & 1023) == 0) {
+                        consumed = next;
+                    }
+                }
+                consumed = next;
+
+                if(System.currentTimeMillis() >= nextReport) {
+                    drops = droppedEvents.get();
+
+                    if(drops != reportedDrops) {
+                        line.setLength(0);
+                        line.append("events dropped: ").append(drops - reportedDrops).append(", highest backlog ")
+                                .append(highestBacklog).append(" of ").append(mask + 1).append('\n');
+                        writer.append(line);
+                        unflushed = true;
+                        System.out.println("[EventLog.run] " + (drops - reportedDrops) + " events dropped, the buffer of "
+                                + (mask + 1) + " events was full");
+                        reportedDrops = drops;
+                    }
+                    nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+                }
+
+                // nothing to render, the file is brought up to date while waiting for events
+                if(rendered || unflushed) {
+                    writer.flush();
+                    unflushed = false;
+                }
+
+                // back off while there are no events, come back quickly once there are
+                parkNanos = rendered ? MIN_PARK_NANOS : Math.min(parkNanos * 2, MAX_PARK_NANOS);
+                LockSupport.parkNanos(parkNanos);
+            } catch (IOException ex) {
+                System.out.println("[EventLog.run] couldn't write the event log, events are no longer recorded");
+                ex.printStackTrace();
+                eventLog = null;
+                return;
+            }
+        }
+    }
+
+    // renders the event in a slot as one line: milliseconds since startup, type, transaction and fields
+    private void render(StringBuilder line, int slot) {
+        int type = types[slot];
+        long micros = (timestamps[slot] - startTime) / 1000;
+
+        line.setLength(0);
+        line.append(micros / 1000).append('.');
+        for(long digits = 100; digits > 0 && micros % 1000 < digits; digits /= 10) {
+            line.append('0');
+        }
+        if(micros % 1000 != 0) {
+            line.append(micros % 1000);
+        }
+
+        line.append(' ').append(EVENT_NAMES[type]).append(" #").append(transactionIDs[slot]);
+        if(ACCOUNT_NAMES[type] != null) {
+            line.append(' ').append(ACCOUNT_NAMES[type]).append(' ').append(accounts[slot]);
+        }
+        if(VALUE_NAMES[type] != null) {
+            line.append(' ').append(VALUE_NAMES[type]).append(' ').append(values[slot]);
+        }
+        line.append('\n');
+    }
+}
@@ -0,0 +1,421 @@
+package transaction.server.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Properties;
+
+/**
+ * class [FlightEvents] defines the JDK Flight Recorder events of the transaction lifecycle, so a recording shows
+ * opens, reads, writes, validations, commit lock waits, write installs and aborts next to the GC, safepoint and
+ * monitor events of the JVM. The events are timed like the phases of the metrics and carry the transaction ID.
+ *
+ * With FLIGHT_RECORDER_EVENTS off, the default, no event is created: every begin method returns null after one
+ * flag check, and the call sites skip committing a null event. With it on, events are created and timed, but only
+ * written while a recording is running that enables them, e.g. java -XX:StartFlightRecording.
+ *
+ * @author surya and dheeraj
+ */
+public class FlightEvents {
+
+    // whether events are created at all
+    static boolean enabled = false;
+
+    /**
+     * Configures the events from the server properties. Called once at startup, before any transaction runs.
+     *
+     * @param properties the server properties
+     */
+    public static void configure(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty("FLIGHT_RECORDER_EVENTS", "false"));
+
+        // registered up front, so recordings list the events before the first one is committed
+        if(enabled) {
+            FlightRecorder.register(Open.class);
+            FlightRecorder.register(Read.class);
+            FlightRecorder.register(Write.class);
+            FlightRecorder.register(Validation.class);
+            FlightRecorder.register(CommitLockWait.class);
+            FlightRecorder.register(WriteInstall.class);
+            FlightRecorder.register(Abort.class);
+        }
+    }
+
+    /**
+     * Checks whether events are created
+     *
+     * @return true if events are created
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing the opening of a transaction
+     *
+     * @return the event, null if events are off
+     */
+    public static Open beginOpen() {
+        Open event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new Open();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing a read
+     *
+     * @return the event, null if events are off
+     */
+    public static Read beginRead() {
+        Read event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new Read();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing a write
+     *
+     * @return the event, null if events are off
+     */
+    public static Write beginWrite() {
+        Write event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new Write();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing a validation
+     *
+     * @return the event, null if events are off
+     */
+    public static Validation beginValidation() {
+        Validation event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new Validation();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing the wait for the commit lock, or for the latches of the accounts in parallel commit mode
+     *
+     * @return the event, null if events are off
+     */
+    public static CommitLockWait beginCommitLockWait() {
+        CommitLockWait event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new CommitLockWait();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing the installation of a write set
+     *
+     * @return the event, null if events are off
+     */
+    public static WriteInstall beginWriteInstall() {
+        WriteInstall event;
+
+        if(!enabled) {
+            return null;
+        }
+        event = new WriteInstall();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records the abort of a transaction
+     *
+     * @param transactionID ID of the transaction
+     * @param reason reason of the abort, as named by the metrics
+     * @param conflictingAccount account whose conflict aborted the transaction, 0 if there is none
+     */
+    public static void abort(int transactionID, String reason, int conflictingAccount) {
+        Abort event;
+
+        if(!enabled) {
+            return;
+        }
+        event = new Abort();
+        if(event.shouldCommit()) {
+            event.transactionID = transactionID;
+            event.reason = reason;
+            event.conflictingAccount = conflictingAccount;
+            event.commit();
+        }
+    }
+
+    /**
+     * class [Open] is the opening of a transaction
+     */
+    @Name("transaction.Open")
+    @Label("Transaction Open")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class Open extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Read-only")
+        boolean readOnly;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the opened transaction
+         * @param readOnly whether it is read-only
+         */
+        public void finish(int transactionID, boolean readOnly) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.readOnly = readOnly;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [Read] is a read of an account. The accounts of one multi-account read share the duration of the
+     * whole request.
+     */
+    @Name("transaction.Read")
+    @Label("Transaction Read")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class Read extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Account")
+        int account;
+
+        @Label("Balance")
+        int balance;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the transaction
+         * @param account the account read
+         * @param balance the balance read
+         */
+        public void finish(int transactionID, int account, int balance) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.account = account;
+                this.balance = balance;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [Write] is a tentative write of an account. The accounts of one multi-account write share the
+     * duration of the whole request.
+     */
+    @Name("transaction.Write")
+    @Label("Transaction Write")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class Write extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Account")
+        int account;
+
+        @Label("Balance")
+        int balance;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the transaction
+         * @param account the account written
+         * @param balance the balance written
+         */
+        public void finish(int transactionID, int account, int balance) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.account = account;
+                this.balance = balance;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [Validation] is the validation of a closing transaction
+     */
+    @Name("transaction.Validation")
+    @Label("Transaction Validation")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class Validation extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Window Size")
+        @Description("Transactions committed since the transaction started, the committed history scanned by "
+                + "backward validation")
+        int windowSize;
+
+        @Label("Read Set Size")
+        int readSetSize;
+
+        @Label("Valid")
+        boolean valid;
+
+        @Label("Conflicting Account")
+        @Description("Account whose r/w conflict failed the validation, 0 if there is none")
+        int conflictingAccount;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the transaction
+         * @param windowSize transactions committed since the transaction started
+         * @param readSetSize size of its read set
+         * @param valid whether the validation succeeded
+         * @param conflictingAccount account whose conflict failed the validation, 0 if there is none
+         */
+        public void finish(int transactionID, int windowSize, int readSetSize, boolean valid, int conflictingAccount) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.windowSize = windowSize;
+                this.readSetSize = readSetSize;
+                this.valid = valid;
+                this.conflictingAccount = conflictingAccount;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [CommitLockWait] is the wait of a commit for the commit lock, or for the latches of its accounts in
+     * parallel commit mode. A group commit batch waits once for all its transactions.
+     */
+    @Name("transaction.CommitLockWait")
+    @Label("Commit Lock Wait")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class CommitLockWait extends Event {
+
+        @Label("Transaction ID")
+        @Description("ID of the committing transaction, of the first one of a group commit batch")
+        int transactionID;
+
+        @Label("Transactions")
+        @Description("Transactions waiting, the size of a group commit batch")
+        int transactions;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the committing transaction, of the first one of a batch
+         * @param transactions number of transactions waiting
+         */
+        public void finish(int transactionID, int transactions) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.transactions = transactions;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [WriteInstall] is the installation of the write set of a committed transaction in the accounts,
+     * including its append to the write-ahead log
+     */
+    @Name("transaction.WriteInstall")
+    @Label("Write Install")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class WriteInstall extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Transaction Number")
+        int transactionNumber;
+
+        @Label("Write Set Size")
+        int writeSetSize;
+
+        /**
+         * Ends the event and writes it, if it is recorded
+         *
+         * @param transactionID ID of the transaction
+         * @param transactionNumber its transaction number
+         * @param writeSetSize size of its write set
+         */
+        public void finish(int transactionID, int transactionNumber, int writeSetSize) {
+            end();
+            if(shouldCommit()) {
+                this.transactionID = transactionID;
+                this.transactionNumber = transactionNumber;
+                this.writeSetSize = writeSetSize;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * class [Abort] is the abort of a transaction
+     */
+    @Name("transaction.Abort")
+    @Label("Transaction Abort")
+    @Category("Transaction Server")
+    @StackTrace(false)
+    public static class Abort extends Event {
+
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Conflicting Account")
+        @Description("Account whose r/w conflict aborted the transaction, or whose write doomed it; 0 if there is "
+                + "none")
+        int conflictingAccount;
+    }
+}
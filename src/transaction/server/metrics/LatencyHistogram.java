@@ -0,0 +1,131 @@
+package transaction.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * class [LatencyHistogram] counts latencies in log-linear buckets, like an HDR histogram: every power of two is
+ * split into SUB_BUCKETS buckets of equal width, so a bucket is at most 1/SUB_BUCKETS of its values wide and the
+ * quantiles are within that relative error. Recording is a bucket index computed from the leading zeros of the
+ * value and one atomic increment, no lock is taken and nothing is allocated.
+ *
+ * @author surya and dheeraj
+ */
+public class LatencyHistogram {
+
+    // bits of a value, below its highest one bit, that select the bucket within its power of two
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values below SUB_BUCKETS have a bucket each, every higher power of two has SUB_BUCKETS buckets
+    static final int NUMBER_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // the count is the sum of the buckets, it isn't kept separately to save an atomic update per latency
+    final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    final LongAdder sum = new LongAdder();
+    final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+
+        for(int index = 0; index < NUMBER_OF_BUCKETS; index++) {
+            count += buckets.get(index);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of all latencies recorded
+     *
+     * @return the sum, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the highest latency recorded
+     *
+     * @return the maximum, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns a quantile of the latencies recorded, as the highest value of the bucket holding it. Recording
+     * goes on meanwhile, so the buckets are read as they are, not as one snapshot.
+     *
+     * @param quantile the quantile, between 0 and 1
+     *
+     * @return the quantile, in nanoseconds, 0 if nothing was recorded
+     */
+    public long getQuantile(double quantile) {
+        long[] counts = new long[NUMBER_OF_BUCKETS];
+        long total = 0;
+        long rank;
+        long seen = 0;
+
+        for(int index = 0; index < NUMBER_OF_BUCKETS; index++) {
+            counts[index] = buckets.get(index);
+            total += counts[index];
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        rank = Math.max(1, (long) Math.ceil(quantile * total));
+        for(int index = 0; index < NUMBER_OF_BUCKETS; index++) {
+            seen += counts[index];
+            if(seen >= rank) {
+                return Math.min(highestValue(index), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // maps a value onto its bucket: its power of two and the SUB_BUCKET_BITS bits below its highest one bit
+    static int bucketIndex(long value) {
+        int exponent;
+
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+                + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    // returns the highest value mapped onto a bucket
+    static long highestValue(int index) {
+        int exponent;
+        long lowestValue;
+
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        lowestValue = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
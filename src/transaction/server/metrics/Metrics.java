@@ -0,0 +1,293 @@
+package transaction.server.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * class [Metrics] is the registry of the server's metrics: counters of opened, committed and aborted
+ * transactions, aborts by reason, a latency histogram per phase of a transaction, the r/w conflicts per account
+ * and gauges registered by the components that own the measured values.
+ * Counters are LongAdders and histograms are lock-free, so recording from many threads doesn't contend on a
+ * single cache line and never blocks. With METRICS off, nothing is timed or counted.
+ *
+ * A snapshot is a map from metric names to values, in a fixed order, as returned by the STATS request.
+ *
+ * @author surya and dheeraj
+ */
+public class Metrics {
+
+    // phases of a transaction
+    public static final int OPEN = 0;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int VALIDATE = 3;
+    public static final int INSTALL = 4;
+    public static final int REPLY = 5;
+    public static final int COMMIT = 6;
+
+    // names of the phases; COMMIT is the whole close, from the request until the commit is decided
+    public static final String[] PHASE_NAMES = {"open", "read", "write", "validate", "install", "reply", "commit"};
+
+    // reasons of aborts
+    public static final int VALIDATION_FAILED = 0;
+    public static final int DOOMED = 1;
+    public static final int READ_ONLY_WRITE = 2;
+    public static final int PROCEDURE_FAILED = 3;
+    public static final int ABANDONED = 4;
+    public static final int SNAPSHOT_TOO_OLD = 5;
+
+    // names of the abort reasons
+    public static final String[] ABORT_REASON_NAMES = {"validation_failed", "doomed", "read_only_write",
+            "procedure_failed", "abandoned", "snapshot_too_old"};
+
+    // quantiles put into snapshots, and the names they are put in under
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    // number of accounts with the most conflicts put into snapshots
+    static final int TOP_CONFLICTING_ACCOUNTS = 10;
+
+    // whether metrics are recorded
+    static boolean enabled = true;
+
+    static final LongAdder opened = new LongAdder();
+    static final LongAdder committed = new LongAdder();
+    static final LongAdder[] aborts = new LongAdder[ABORT_REASON_NAMES.length];
+    static final LatencyHistogram[] phases = new LatencyHistogram[PHASE_NAMES.length];
+
+    // r/w conflicts found by validation, by account number
+    static final Map<Integer, LongAdder> conflictsByAccount = new ConcurrentHashMap<>();
+
+    // gauges, sorted by name, read when a snapshot is taken
+    static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    static {
+        for(int reason = 0; reason < aborts.length; reason++) {
+            aborts[reason] = new LongAdder();
+        }
+        for(int phase = 0; phase < phases.length; phase++) {
+            phases[phase] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Configures the metrics from the server properties. Called once at startup, before any transaction runs.
+     *
+     * @param properties the server properties
+     */
+    public static void configure(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty("METRICS", "true"));
+    }
+
+    /**
+     * Checks whether metrics are recorded
+     *
+     * @return true if metrics are recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a phase
+     *
+     * @return the start time, to be passed to recordPhase, 0 if metrics are off
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the latency of a phase
+     *
+     * @param phase the phase
+     * @param startTime the start time, as returned by startTimer
+     */
+    public static void recordPhase(int phase, long startTime) {
+        if(enabled) {
+            phases[phase].record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Counts an opened transaction
+     */
+    public static void countOpened() {
+        if(enabled) {
+            opened.increment();
+        }
+    }
+
+    /**
+     * Counts a committed transaction
+     */
+    public static void countCommitted() {
+        if(enabled) {
+            committed.increment();
+        }
+    }
+
+    /**
+     * Counts an aborted transaction
+     *
+     * @param reason the reason of the abort
+     */
+    public static void countAborted(int reason) {
+        if(enabled) {
+            aborts[reason].increment();
+        }
+    }
+
+    /**
+     * Counts a r/w conflict found by validation on an account
+     *
+     * @param accountNumber the account
+     */
+    public static void recordConflict(int accountNumber) {
+        if(enabled) {
+            conflictsByAccount.computeIfAbsent(accountNumber, account -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Registers a gauge, a value owned by another component which is read when a snapshot is taken. The gauge
+     * must not block, it is read by any thread asking for a snapshot.
+     *
+     * @param name name of the gauge
+     * @param gauge reads the value
+     */
+    public static void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the latency histogram of a phase
+     *
+     * @param phase the phase
+     *
+     * @return the histogram
+     */
+    public static LatencyHistogram getPhase(int phase) {
+        return phases[phase];
+    }
+
+    /**
+     * Returns the number of transactions opened
+     *
+     * @return the number of opened transactions
+     */
+    public static long getOpened() {
+        return opened.sum();
+    }
+
+    /**
+     * Returns the number of transactions committed
+     *
+     * @return the number of committed transactions
+     */
+    public static long getCommitted() {
+        return committed.sum();
+    }
+
+    /**
+     * Returns the number of transactions aborted for a reason
+     *
+     * @param reason the reason
+     *
+     * @return the number of aborted transactions
+     */
+    public static long getAborted(int reason) {
+        return aborts[reason].sum();
+    }
+
+    /**
+     * Returns the number of transactions aborted for any reason
+     *
+     * @return the number of aborted transactions
+     */
+    public static long getAborted() {
+        long total = 0;
+
+        for(LongAdder abortsOfReason : aborts) {
+            total += abortsOfReason.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the accounts with the most conflicts, most conflicts first
+     *
+     * @param limit how many accounts to return at most
+     *
+     * @return account numbers and their conflicts, as {account, conflicts} pairs
+     */
+    public static List<long[]> getTopConflictingAccounts(int limit) {
+        PriorityQueue<long[]> top = new PriorityQueue<>((a, b) -> Long.compare(a[1], b[1]));
+        List<long[]> accounts;
+
+        for(Map.Entry<Integer, LongAdder> entry : conflictsByAccount.entrySet()) {
+            top.add(new long[]{entry.getKey(), entry.getValue().sum()});
+            if(top.size() > limit) {
+                top.poll();
+            }
+        }
+
+        accounts = new ArrayList<>(top);
+        accounts.sort((a, b) -> Long.compare(b[1], a[1]));
+        return accounts;
+    }
+
+    /**
+     * Takes a snapshot of all metrics. Counters and histograms are read one after the other while recording goes
+     * on, so they may be a few transactions apart; no lock is taken.
+     *
+     * @return the metrics, by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        List<long[]> topAccounts;
+        LatencyHistogram histogram;
+        long abortsInTotal = getAborted();
+
+        snapshot.put("transactions_opened", getOpened());
+        snapshot.put("transactions_committed", getCommitted());
+        snapshot.put("transactions_aborted", abortsInTotal);
+        snapshot.put("transactions_running", Math.max(0, getOpened() - getCommitted() - abortsInTotal));
+
+        for(int reason = 0; reason < aborts.length; reason++) {
+            snapshot.put("aborts_" + ABORT_REASON_NAMES[reason], getAborted(reason));
+        }
+
+        for(int phase = 0; phase < phases.length; phase++) {
+            histogram = phases[phase];
+
+            snapshot.put(PHASE_NAMES[phase] + "_count", histogram.getCount());
+            snapshot.put(PHASE_NAMES[phase] + "_mean_ns", histogram.getCount() == 0 ? 0
+                    : histogram.getSum() / histogram.getCount());
+            for(int quantile = 0; quantile < QUANTILES.length; quantile++) {
+                snapshot.put(PHASE_NAMES[phase] + "_" + QUANTILE_NAMES[quantile] + "_ns",
+                        histogram.getQuantile(QUANTILES[quantile]));
+            }
+            snapshot.put(PHASE_NAMES[phase] + "_max_ns", histogram.getMax());
+        }
+
+        topAccounts = getTopConflictingAccounts(TOP_CONFLICTING_ACCOUNTS);
+        for(int rank = 0; rank < topAccounts.size(); rank++) {
+            snapshot.put("top_conflict_" + (rank + 1) + "_account", topAccounts.get(rank)[0]);
+            snapshot.put("top_conflict_" + (rank + 1) + "_conflicts", topAccounts.get(rank)[1]);
+        }
+
+        for(Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,216 @@
+package transaction.server.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * class [MetricsHttpServer] serves the metrics over HTTP in the Prometheus text format, for monitoring systems
+ * scraping the server. GET /metrics returns the transaction counters, aborts by reason, the latency summaries of
+ * the phases of a transaction, the accounts with the most conflicts, the registered gauges and the heap and thread
+ * counts of the JVM. Counters are totals, rates such as the throughput are computed by the scraper.
+ *
+ * A scrape reads the same lock-free counters, histograms and gauges as the STATS request, it never takes the
+ * commit lock or any latch and is answered by a thread of its own, not by a worker or an event loop.
+ *
+ * @author surya and dheeraj
+ */
+public class MetricsHttpServer {
+
+    // prefix of the names of the server's metrics
+    static final String PREFIX = "transaction_server_";
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    final HttpServer httpServer;
+
+    /**
+     * Custom constructor
+     *
+     * @param address address to listen on
+     */
+    MetricsHttpServer(InetSocketAddress address) throws IOException {
+        httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/metrics", this::handle);
+
+        // one thread answers all scrapes, they are rare and short
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MetricsHttpServer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Starts the HTTP endpoint configured in the server properties, if METRICS_HTTP_PORT is set. Called once at
+     * startup, after the gauges are registered.
+     *
+     * @param properties the server properties
+     */
+    public static void start(Properties properties) {
+        int port = Integer.parseInt(properties.getProperty("METRICS_HTTP_PORT", "0"));
+        MetricsHttpServer metricsHttpServer;
+
+        if(port == 0) {
+            return;
+        }
+
+        try {
+            metricsHttpServer = new MetricsHttpServer(new InetSocketAddress(
+                    InetAddress.getByName(properties.getProperty("METRICS_HTTP_ADDRESS", "127.0.0.1")), port));
+        } catch (IOException ex) {
+            System.out.println("[MetricsHttpServer.start] couldn't listen on port " + port);
+            ex.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        metricsHttpServer.httpServer.start();
+        System.out.println("[MetricsHttpServer.start] Serving metrics on "
+                + metricsHttpServer.httpServer.getAddress() + "/metrics");
+    }
+
+    // answers a scrape, only GET is served
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+
+        try {
+            if(!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+
+            if(exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format
+     *
+     * @return the exposition
+     */
+    static String render() {
+        StringBuilder text = new StringBuilder(8192);
+        LatencyHistogram histogram;
+        List<long[]> topAccounts;
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long opened = Metrics.getOpened();
+        long committed = Metrics.getCommitted();
+        long aborted = Metrics.getAborted();
+
+        header(text, "transactions_opened_total", "counter", "Transactions opened");
+        sample(text, PREFIX + "transactions_opened_total", null, opened);
+        header(text, "transactions_committed_total", "counter", "Transactions committed");
+        sample(text, PREFIX + "transactions_committed_total", null, committed);
+
+        header(text, "transactions_aborted_total", "counter", "Transactions aborted, by reason");
+        for(int reason = 0; reason < Metrics.ABORT_REASON_NAMES.length; reason++) {
+            sample(text, PREFIX + "transactions_aborted_total", "reason=\"" + Metrics.ABORT_REASON_NAMES[reason] + "\"",
+                    Metrics.getAborted(reason));
+        }
+
+        header(text, "transactions_running", "gauge", "Transactions opened but neither committed nor aborted");
+        sample(text, PREFIX + "transactions_running", null, Math.max(0, opened - committed - aborted));
+
+        // latencies are recorded in nanoseconds and exposed in seconds
+        header(text, "phase_latency_seconds", "summary", "Latency of the phases of a transaction");
+        for(int phase = 0; phase < Metrics.PHASE_NAMES.length; phase++) {
+            histogram = Metrics.getPhase(phase);
+
+            for(int quantile = 0; quantile < Metrics.QUANTILES.length; quantile++) {
+                sample(text, PREFIX + "phase_latency_seconds", "phase=\"" + Metrics.PHASE_NAMES[phase]
+                                + "\",quantile=\"" + Metrics.QUANTILES[quantile] + "\"",
+                        histogram.getQuantile(Metrics.QUANTILES[quantile]) / 1e9);
+            }
+            sample(text, PREFIX + "phase_latency_seconds_sum", "phase=\"" + Metrics.PHASE_NAMES[phase] + "\"",
+                    histogram.getSum() / 1e9);
+            sample(text, PREFIX + "phase_latency_seconds_count", "phase=\"" + Metrics.PHASE_NAMES[phase] + "\"",
+                    histogram.getCount());
+        }
+
+        header(text, "phase_latency_max_seconds", "gauge", "Highest latency of the phases of a transaction");
+        for(int phase = 0; phase < Metrics.PHASE_NAMES.length; phase++) {
+            sample(text, PREFIX + "phase_latency_max_seconds", "phase=\"" + Metrics.PHASE_NAMES[phase] + "\"",
+                    Metrics.getPhase(phase).getMax() / 1e9);
+        }
+
+        topAccounts = Metrics.getTopConflictingAccounts(Metrics.TOP_CONFLICTING_ACCOUNTS);
+        header(text, "account_conflicts_total", "counter", "R/w conflicts found by validation, "
+                + "for the accounts with the most conflicts");
+        for(long[] account : topAccounts) {
+            sample(text, PREFIX + "account_conflicts_total", "account=\"" + account[0] + "\"", account[1]);
+        }
+
+        // gauges registered by the components owning them, such as committed_history_size
+        for(Map.Entry<String, LongSupplier> gauge : Metrics.gauges.entrySet()) {
+            header(text, gauge.getKey(), "gauge", "Gauge " + gauge.getKey());
+            sample(text, PREFIX + gauge.getKey(), null, gauge.getValue().getAsLong());
+        }
+
+        text.append("# HELP jvm_memory_heap_bytes Heap memory of the JVM, by state\n");
+        text.append("# TYPE jvm_memory_heap_bytes gauge\n");
+        sample(text, "jvm_memory_heap_bytes", "state=\"used\"", heap.getUsed());
+        sample(text, "jvm_memory_heap_bytes", "state=\"committed\"", heap.getCommitted());
+        sample(text, "jvm_memory_heap_bytes", "state=\"max\"", heap.getMax());
+
+        text.append("# HELP jvm_threads Threads of the JVM, by state\n");
+        text.append("# TYPE jvm_threads gauge\n");
+        sample(text, "jvm_threads", "state=\"live\"", threads.getThreadCount());
+        sample(text, "jvm_threads", "state=\"daemon\"", threads.getDaemonThreadCount());
+        sample(text, "jvm_threads", "state=\"peak\"", threads.getPeakThreadCount());
+        return text.toString();
+    }
+
+    // appends the HELP and TYPE lines of a metric of the server
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    // appends a sample with an integer value
+    private static void sample(StringBuilder text, String name, String labels, long value) {
+        appendName(text, name, labels);
+        text.append(value).append('\n');
+    }
+
+    // appends a sample with a decimal value
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        appendName(text, name, labels);
+        text.append(value).append('\n');
+    }
+
+    // appends the name and labels of a sample
+    private static void appendName(StringBuilder text, String name, String labels) {
+        text.append(name);
+        if(labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ');
+    }
+}
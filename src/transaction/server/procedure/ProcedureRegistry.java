@@ -0,0 +1,41 @@
+package transaction.server.procedure;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * class [ProcedureRegistry] maps procedure names, as sent by clients in CALL_PROCEDURE requests, onto the stored
+ * procedures the server runs for them. The built-in procedures are registered up front.
+ *
+ * @author surya
+ */
+public class ProcedureRegistry {
+
+    // registered procedures, by name
+    static final Map<String, StoredProcedure> procedures = new ConcurrentHashMap<>();
+
+    static {
+        register("transfer", new TransferProcedure());
+    }
+
+    /**
+     * Registers a procedure, replacing a procedure registered under the same name
+     *
+     * @param name name clients call the procedure by
+     * @param procedure the procedure
+     */
+    public static void register(String name, StoredProcedure procedure) {
+        procedures.put(name, procedure);
+    }
+
+    /**
+     * Looks up a procedure
+     *
+     * @param name name of the procedure
+     *
+     * @return the procedure, or null if there is no procedure with that name
+     */
+    public static StoredProcedure lookup(String name) {
+        return procedures.get(name);
+    }
+}
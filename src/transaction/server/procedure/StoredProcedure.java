@@ -0,0 +1,26 @@
+package transaction.server.procedure;
+
+import transaction.exception.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+
+/**
+ * interface [StoredProcedure] is a piece of transaction logic that runs entirely inside the server. It reads and
+ * writes through the transaction it is given; opening and closing the transaction is left to the caller, so the
+ * client needs a single round trip for the whole transaction.
+ *
+ * @author surya
+ */
+public interface StoredProcedure {
+
+    /**
+     * Runs the procedure
+     *
+     * @param transaction the open transaction to read and write through
+     * @param arguments the arguments sent by the client
+     *
+     * @return the result sent back to the client
+     *
+     * @throws TransactionAbortedException if the procedure gives up, the transaction is then aborted
+     */
+    int execute(Transaction transaction, int[] arguments) throws TransactionAbortedException;
+}
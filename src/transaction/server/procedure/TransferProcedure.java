@@ -0,0 +1,32 @@
+package transaction.server.procedure;
+
+import transaction.exception.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+
+/**
+ * class [TransferProcedure] moves an amount from one account to another: transfer(accountA, accountB, amount).
+ * The result is the new balance of accountA.
+ *
+ * @author surya
+ */
+public class TransferProcedure implements StoredProcedure {
+
+    @Override
+    public int execute(Transaction transaction, int[] arguments) throws TransactionAbortedException {
+        if(arguments.length != 3 || arguments[0] == arguments[1]) {
+            throw new TransactionAbortedException();
+        }
+
+        int accountA = arguments[0];
+        int accountB = arguments[1];
+        int amount = arguments[2];
+
+        int balanceA = transaction.read(accountA);
+        int balanceB = transaction.read(accountB);
+
+        transaction.write(accountA, balanceA - amount);
+        transaction.write(accountB, balanceB + amount);
+
+        return balanceA - amount;
+    }
+}
@@ -0,0 +1,224 @@
+package transaction.server.transaction;
+
+import transaction.server.event.EventLog;
+import transaction.server.event.FlightEvents;
+import utils.IntIntMap;
+import utils.IntSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static transaction.server.transaction.TransactionManager.runningTransactions;
+
+/**
+ * class [CommitSequencer] implements group commit. Closing transactions are queued and collected into a batch
+ * until either the batch window elapsed or the batch size is reached. The whole batch is then validated in one
+ * pass inside a single critical section, including conflicts between members of the batch, all surviving write
+ * sets are written together, and every waiting worker is completed.
+ *
+ * @author surya and dheeraj
+ */
+public class CommitSequencer extends Thread {
+
+    // closing transactions waiting to be sequenced
+    final BlockingQueue<PendingCommit> pendingCommits = new LinkedBlockingQueue<>();
+
+    // how long a batch stays open for more members after its first member arrived, in milliseconds
+    final long batchWindow;
+
+    // maximum number of transactions in one batch
+    final int batchSize;
+
+    /**
+     * Custom constructor
+     *
+     * @param batchWindow how long a batch collects closing transactions, in milliseconds
+     * @param batchSize maximum number of transactions in one batch
+     */
+    CommitSequencer(long batchWindow, int batchSize) {
+        super("CommitSequencer");
+        this.batchWindow = batchWindow;
+        this.batchSize = batchSize;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a closing transaction for the next batch
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a future completed with true if the transaction is committed, false if it is aborted
+     */
+    public CompletableFuture<Boolean> submit(Transaction transaction) {
+        PendingCommit pendingCommit = new PendingCommit(transaction);
+        pendingCommits.add(pendingCommit);
+        return pendingCommit.result;
+    }
+
+    /**
+     * Queues a closing transaction and waits until its batch is done
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a flag indicating whether the transaction is committed or aborted
+     */
+    public boolean commit(Transaction transaction) {
+        return submit(transaction).join();
+    }
+
+    @Override
+    public void run() {
+        List<PendingCommit> batch = new ArrayList<>(batchSize);
+        PendingCommit pendingCommit;
+        long deadline;
+        long remaining;
+
+        while(true) {
+            try {
+                // wait for the first member of the next batch
+                batch.add(pendingCommits.take());
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+
+                // collect more members until the batch is full or the window elapsed
+                while(batch.size() < batchSize) {
+                    remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) {
+                        pendingCommits.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+
+                    pendingCommit = pendingCommits.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(pendingCommit == null) {
+                        break;
+                    }
+                    batch.add(pendingCommit);
+                }
+            } catch (InterruptedException ex) {
+                System.out.println("[CommitSequencer.run] Interrupted, stopping group commit");
+                return;
+            }
+
+            // a failing batch must not stop the sequencer, or every later commit would wait forever
+            try {
+                commitBatch(batch);
+            } catch (RuntimeException | Error ex) {
+                System.out.println("[CommitSequencer.run] Error committing a batch of " + batch.size()
+                        + " transactions, failing their commits");
+                ex.printStackTrace();
+                failBatch(batch, ex);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Validates and writes a batch of closing transactions in one critical section, then completes the waiting
+     * workers outside of it. Members are validated in arrival order; a member whose read set overlaps the write
+     * set of an earlier surviving member is aborted, as it read the value from before that member's write.
+     *
+     * @param batch the closing transactions of the batch
+     */
+    void commitBatch(List<PendingCommit> batch) {
+        IntSet batchWriteSet = new IntSet(batch.size() * 2);
+        IntIntMap writeSet;
+        Transaction transaction;
+        FlightEvents.CommitLockWait lockWait = FlightEvents.beginCommitLockWait();
+
+        synchronized (runningTransactions) {
+            if(lockWait != null) {
+                lockWait.finish(batch.get(0).transaction.getTransactionID(), batch.size());
+            }
+
+            for(PendingCommit pendingCommit : batch) {
+                transaction = pendingCommit.transaction;
+
+                // remove the transaction from the list of current running transactions
+                runningTransactions.remove(transaction);
+
+                if(!conflictsWithBatch(transaction, batchWriteSet) && TransactionManager.validateTransaction(transaction)) {
+                    pendingCommit.committed = true;
+                    writeSet = transaction.getWriteSet();
+
+                    for(int index = 0; index < writeSet.size(); index++) {
+                        batchWriteSet.add(writeSet.keyAt(index));
+                    }
+
+                    // add the write set of the transaction to the committed history
+                    TransactionManager.recordCommittedTransaction(transaction);
+                }
+            }
+
+            // write all surviving write sets to the operational data
+            for(PendingCommit pendingCommit : batch) {
+                if(pendingCommit.committed) {
+                    TransactionManager.writeTransaction(pendingCommit.transaction);
+                }
+            }
+        }
+
+        for(PendingCommit pendingCommit : batch) {
+            pendingCommit.result.complete(pendingCommit.committed);
+        }
+    }
+
+    /**
+     * Fails the commits of a batch that couldn't be committed. Whether a member's write set was written is
+     * unknown, so its commit is completed exceptionally rather than reported as aborted.
+     *
+     * @param batch the closing transactions of the batch
+     * @param cause the error that stopped the batch
+     */
+    void failBatch(List<PendingCommit> batch, Throwable cause) {
+        // members the batch didn't get to are still running, they must not hold back the low watermark
+        synchronized (runningTransactions) {
+            for(PendingCommit pendingCommit : batch) {
+                runningTransactions.remove(pendingCommit.transaction);
+            }
+        }
+
+        for(PendingCommit pendingCommit : batch) {
+            pendingCommit.result.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Checks the read set of a transaction against the write sets of the earlier committed members of its batch
+     *
+     * @param transaction Transaction to be checked
+     * @param batchWriteSet accounts written by the earlier committed members of the batch
+     *
+     * @return true if the transaction read an account written by an earlier member
+     */
+    boolean conflictsWithBatch(Transaction transaction, IntSet batchWriteSet) {
+        IntSet readSet = transaction.getReadSet();
+        int account;
+
+        for(int index = 0; index < readSet.size(); index++) {
+            account = readSet.get(index);
+
+            if(batchWriteSet.contains(account)) {
+                TransactionManager.recordConflict(transaction, account);
+                EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), account, 0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * class [PendingCommit] is a closing transaction waiting for its batch
+     */
+    static class PendingCommit {
+        final Transaction transaction;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        boolean committed = false;
+
+        PendingCommit(Transaction transaction) {
+            this.transaction = transaction;
+        }
+    }
+}
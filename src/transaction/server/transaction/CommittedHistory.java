@@ -0,0 +1,272 @@
+package transaction.server.transaction;
+
+import utils.IntSet;
+
+/**
+ * class [CommittedHistory] keeps the write sets of committed transactions that backward validation may still
+ * have to check. Entries are kept in a ring buffer indexed by transaction number and hold only the transaction
+ * ID and the written account numbers, so committed Transaction objects are not kept reachable.
+ * Entries at or below the low watermark, i.e. the oldest start number among the running transactions,
+ * are dropped as no running transaction can be validated against them anymore.
+ * Summary validation marks the read set in a bitmap over the account numbers, the read set summary, and tests
+ * every committed write set against it with one bit test per written account instead of a hash set lookup.
+ * An account number at or above the width of the bitmap shares its bit with the account numbers equal to it
+ * modulo the width, so a set bit only means a possible overlap; with the bitmap wider than the highest account
+ * number every account has a bit of its own and a set bit is an overlap.
+ *
+ * @author surya and dheeraj
+ */
+public class CommittedHistory {
+
+    // initial number of slots of the ring buffer
+    static final int INITIAL_CAPACITY = 1024;
+
+    // width of the read set summary in bits, unless configured otherwise
+    public static final int DEFAULT_SUMMARY_BITS = 256;
+
+    // narrowest and widest read set summary in bits
+    public static final int MIN_SUMMARY_BITS = 64;
+    public static final int MAX_SUMMARY_BITS = 1 << 27;
+
+    // widest read set summary chosen from the number of accounts, 2 MB
+    public static final int MAX_SCALED_SUMMARY_BITS = 1 << 24;
+
+    // ring buffer slots, indexed by transaction number modulo capacity; an empty slot has transaction ID 0
+    int[] transactionIDs;
+    int[][] writeSets;
+
+    // bitmap marking the read set being validated, reused by every validation, so it is only used while holding
+    // the commit lock; all words are zero between validations
+    final long[] readSetSummary;
+
+    // mask turning an account number into its bit of the read set summary
+    final int summaryMask;
+
+    // lowest transaction number still retained
+    int oldestTransactionNumber = 1;
+
+    // highest transaction number recorded so far
+    int newestTransactionNumber = 0;
+
+    // number of write sets currently retained
+    int size = 0;
+
+    // default constructor
+    public CommittedHistory() {
+        this(DEFAULT_SUMMARY_BITS);
+    }
+
+    /**
+     * Custom constructor
+     *
+     * @param summaryBits width of the read set summary in bits, a power of two from MIN_SUMMARY_BITS to
+     *                    MAX_SUMMARY_BITS
+     */
+    public CommittedHistory(int summaryBits) {
+        if(Integer.bitCount(summaryBits) != 1 || summaryBits < MIN_SUMMARY_BITS || summaryBits > MAX_SUMMARY_BITS) {
+            throw new IllegalArgumentException("[CommittedHistory.CommittedHistory] Summary width " + summaryBits
+                    + " is not a power of two from " + MIN_SUMMARY_BITS + " to " + MAX_SUMMARY_BITS);
+        }
+        this.transactionIDs = new int[INITIAL_CAPACITY];
+        this.writeSets = new int[INITIAL_CAPACITY][];
+        this.readSetSummary = new long[summaryBits / 64];
+        this.summaryMask = summaryBits - 1;
+    }
+
+    /**
+     * Returns the read set summary width for a number of accounts: the narrowest one above the highest account
+     * number, so every account has a bit of its own, up to MAX_SCALED_SUMMARY_BITS
+     *
+     * @param numberOfAccounts number of accounts, numbered from 1
+     *
+     * @return the width in bits, a power of two
+     */
+    public static int summaryBitsFor(int numberOfAccounts) {
+        int summaryBits = MIN_SUMMARY_BITS;
+
+        while(summaryBits <= numberOfAccounts && summaryBits < MAX_SCALED_SUMMARY_BITS) {
+            summaryBits *= 2;
+        }
+        return summaryBits;
+    }
+
+    /**
+     * Records the write set of a committed transaction
+     *
+     * @param transactionNumber the transaction number of the committed transaction
+     * @param transactionID the ID of the committed transaction
+     * @param writeSet the account numbers written by the committed transaction
+     */
+    public void add(int transactionNumber, int transactionID, int[] writeSet) {
+        if(transactionNumber < oldestTransactionNumber) {
+            return;
+        }
+
+        // grow the ring buffer if the retained window does not fit anymore
+        while(transactionNumber - oldestTransactionNumber >= transactionIDs.length) {
+            grow();
+        }
+
+        int slot = slot(transactionNumber);
+        transactionIDs[slot] = transactionID;
+        writeSets[slot] = writeSet;
+        size++;
+
+        if(transactionNumber > newestTransactionNumber) {
+            newestTransactionNumber = transactionNumber;
+        }
+    }
+
+    /**
+     * Returns the write set of the committed transaction with the given transaction number
+     *
+     * @param transactionNumber the transaction number to look up
+     *
+     * @return the account numbers written, or null if the transaction was aborted or is no longer retained
+     */
+    public int[] getWriteSet(int transactionNumber) {
+        if(!isRetained(transactionNumber)) {
+            return null;
+        }
+        return writeSets[slot(transactionNumber)];
+    }
+
+    /**
+     * Returns the ID of the committed transaction with the given transaction number
+     *
+     * @param transactionNumber the transaction number to look up
+     *
+     * @return the transaction ID, or 0 if the transaction was aborted or is no longer retained
+     */
+    public int getTransactionID(int transactionNumber) {
+        if(!isRetained(transactionNumber)) {
+            return 0;
+        }
+        return transactionIDs[slot(transactionNumber)];
+    }
+
+    /**
+     * Checks the write set of the committed transaction with the given transaction number against the summary
+     * of a read set. A result of false means there is definitely no overlap, true means there may be one and the
+     * write set has to be checked exactly.
+     *
+     * @param transactionNumber the transaction number to look up
+     * @param readSetSummary the summary of the read set, as built by summarize
+     *
+     * @return false if the write set and the read set definitely don't overlap
+     */
+    public boolean mayOverlap(int transactionNumber, long[] readSetSummary) {
+        int[] writeSet;
+        int bit;
+
+        if(!isRetained(transactionNumber)) {
+            return false;
+        }
+
+        // aborted transactions leave an empty slot
+        writeSet = writeSets[slot(transactionNumber)];
+        if(writeSet == null) {
+            return false;
+        }
+
+        for(int account : writeSet) {
+            bit = account & summaryMask;
+
+            if((readSetSummary[bit >>> 6] & (1L << bit)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks a read set in the read set summary, to be checked against write sets with mayOverlap. The summary is
+     * shared by all validations: the caller holds the commit lock and clears it with clearSummary when done.
+     *
+     * @param accounts the account numbers read
+     *
+     * @return the read set summary
+     */
+    public long[] summarize(IntSet accounts) {
+        int bit;
+
+        for(int index = 0; index < accounts.size(); index++) {
+            bit = accounts.get(index) & summaryMask;
+            readSetSummary[bit >>> 6] |= 1L << bit;
+        }
+        return readSetSummary;
+    }
+
+    /**
+     * Clears the read set summary after a validation, only touching the words of the read set
+     *
+     * @param accounts the account numbers passed to summarize
+     */
+    public void clearSummary(IntSet accounts) {
+        for(int index = 0; index < accounts.size(); index++) {
+            readSetSummary[(accounts.get(index) & summaryMask) >>> 6] = 0L;
+        }
+    }
+
+    /**
+     * Drops all entries with a transaction number at or below the given low watermark
+     *
+     * @param lowWatermark the oldest start number among the running transactions
+     */
+    public void truncate(int lowWatermark) {
+        int lastTransactionNumber = Math.min(lowWatermark, newestTransactionNumber);
+        int slot;
+
+        for(; oldestTransactionNumber <= lastTransactionNumber; oldestTransactionNumber++) {
+            slot = slot(oldestTransactionNumber);
+
+            if(transactionIDs[slot] != 0) {
+                transactionIDs[slot] = 0;
+                writeSets[slot] = null;
+                size--;
+            }
+        }
+
+        // transaction numbers above the newest recorded one were never stored, skip them
+        if(oldestTransactionNumber <= lowWatermark) {
+            oldestTransactionNumber = lowWatermark + 1;
+        }
+    }
+
+    /**
+     * Returns the number of write sets currently retained
+     *
+     * @return the number of retained write sets
+     */
+    public int size() {
+        return size;
+    }
+
+    // checks whether the given transaction number lies inside the retained window
+    private boolean isRetained(int transactionNumber) {
+        return transactionNumber >= oldestTransactionNumber && transactionNumber <= newestTransactionNumber;
+    }
+
+    // maps a transaction number onto its ring buffer slot
+    private int slot(int transactionNumber) {
+        return transactionNumber % transactionIDs.length;
+    }
+
+    // doubles the capacity of the ring buffer, moving the retained entries into their new slots
+    private void grow() {
+        int[] oldTransactionIDs = transactionIDs;
+        int[][] oldWriteSets = writeSets;
+        int oldSlot;
+        int newSlot;
+
+        transactionIDs = new int[oldTransactionIDs.length * 2];
+        writeSets = new int[oldTransactionIDs.length * 2][];
+
+        for(int transactionNumber = oldestTransactionNumber; transactionNumber <= newestTransactionNumber; transactionNumber++) {
+            oldSlot = transactionNumber % oldTransactionIDs.length;
+            newSlot = slot(transactionNumber);
+            transactionIDs[newSlot] = oldTransactionIDs[oldSlot];
+            writeSets[newSlot] = oldWriteSets[oldSlot];
+        }
+    }
+}
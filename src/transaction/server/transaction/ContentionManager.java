@@ -0,0 +1,200 @@
+package transaction.server.transaction;
+
+import transaction.server.event.EventLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class [ContentionManager] switches the accounts causing most of the aborts from optimistic to pessimistic
+ * handling. Validation reports every account it finds in a r/w conflict; an account with at least threshold
+ * conflicts becomes hot. A transaction locks a hot account before reading it for the first time and holds the
+ * lock until its commit is decided, so the transactions touching a hot account run one after the other instead
+ * of invalidating each other. All other accounts stay optimistic.
+ * The counters are halved every decay interval, and an account whose counter fell below half the threshold is
+ * optimistic again, so the hot accounts follow the workload.
+ * Locks are taken in the order the client reads the accounts, so a waiting transaction gives up after a timeout
+ * and reads the account optimistically instead: a deadlock only costs the timeout, and validation still catches
+ * any conflict. Waiting blocks the thread serving the transaction, so a transaction that may not wait, because
+ * its thread serves other transactions too (an NIO event loop or a multiplexed connection), only takes a lock
+ * that is free and otherwise reads optimistically right away.
+ *
+ * @author surya and dheeraj
+ */
+public class ContentionManager extends Thread {
+
+    // number of stripes of the lock table, accounts are mapped onto them by their account number
+    static final int NUMBER_OF_STRIPES = 1024;
+
+    // conflicts an account needs within a decay interval to become hot
+    final int threshold;
+
+    // time between two decays of the counters, in milliseconds
+    final long decayInterval;
+
+    // how long a transaction waits for the lock of a hot account, in nanoseconds
+    final long lockTimeout;
+
+    // conflicts of the accounts since they were last decayed, by account number
+    final Map<Integer, AtomicInteger> conflictCounts = new ConcurrentHashMap<>();
+
+    // accounts handled pessimistically
+    final Set<Integer> hotAccounts = ConcurrentHashMap.newKeySet();
+
+    // owners of the locks of hot accounts, by account number, each map only touched while holding it
+    final List<Map<Integer, Transaction>> lockStripes = new ArrayList<>(NUMBER_OF_STRIPES);
+
+    /**
+     * Custom constructor
+     *
+     * @param threshold conflicts an account needs within a decay interval to become hot
+     * @param decayInterval time between two decays of the counters, in milliseconds
+     * @param lockTimeout how long a transaction waits for the lock of a hot account, in milliseconds
+     */
+    public ContentionManager(int threshold, long decayInterval, long lockTimeout) {
+        super("ContentionManager");
+        this.threshold = threshold;
+        this.decayInterval = decayInterval;
+        this.lockTimeout = lockTimeout * 1000000;
+
+        for(int i = 0; i < NUMBER_OF_STRIPES; i++) {
+            lockStripes.add(new HashMap<>());
+        }
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                Thread.sleep(decayInterval);
+            } catch (InterruptedException ex) {
+                System.out.println("[ContentionManager.run] Interrupted, stopping the decay of the conflict counters");
+                return;
+            }
+            decay();
+        }
+    }
+
+    /**
+     * Counts a r/w conflict found by validation on an account
+     *
+     * @param accountNumber the account
+     */
+    public void recordConflict(int accountNumber) {
+        int conflicts = conflictCounts.computeIfAbsent(accountNumber, account -> new AtomicInteger()).incrementAndGet();
+
+        if(conflicts >= threshold && !hotAccounts.contains(accountNumber) && hotAccounts.add(accountNumber)) {
+            System.out.println("[ContentionManager.recordConflict] Account #" + accountNumber + " is hot, locking it");
+        }
+    }
+
+    /**
+     * Halves the conflict counters, hot accounts whose counter fell below half the threshold become optimistic
+     */
+    public void decay() {
+        Iterator<Map.Entry<Integer, AtomicInteger>> iterator = conflictCounts.entrySet().iterator();
+        Map.Entry<Integer, AtomicInteger> entry;
+        int conflicts;
+
+        while(iterator.hasNext()) {
+            entry = iterator.next();
+            conflicts = entry.getValue().get() / 2;
+            entry.getValue().set(conflicts);
+
+            if(conflicts * 2 < threshold && hotAccounts.remove(entry.getKey())) {
+                System.out.println("[ContentionManager.decay] Account #" + entry.getKey() + " has cooled down");
+            }
+            if(conflicts == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Locks an account for a transaction about to read it for the first time, if the account is hot. Waits for
+     * the lock at most the lock timeout, not at all if the transaction may not wait; the transaction then reads the
+     * account optimistically.
+     *
+     * @param accountNumber the account
+     * @param transaction the reading transaction
+     */
+    public void lockIfHot(int accountNumber, Transaction transaction) {
+        Map<Integer, Transaction> stripe;
+        Transaction owner;
+        long deadline;
+        long remaining;
+
+        if(!hotAccounts.contains(accountNumber)) {
+            return;
+        }
+
+        stripe = lockStripes.get(stripeIndex(accountNumber));
+        deadline = System.nanoTime() + (transaction.mayWait ? lockTimeout : 0);
+
+        synchronized (stripe) {
+            owner = stripe.get(accountNumber);
+
+            while(owner != null && owner != transaction) {
+                remaining = deadline - System.nanoTime();
+
+                // only older owners are waited for, so waiting transactions never form a cycle
+                if(owner.getTransactionID() > transaction.getTransactionID()) {
+                    EventLog.record(EventLog.LOCK_SKIPPED, transaction.getTransactionID(), accountNumber,
+                            owner.getTransactionID());
+                    return;
+                }
+
+                if(remaining <= 0) {
+                    EventLog.record(EventLog.LOCK_SKIPPED, transaction.getTransactionID(), accountNumber,
+                            owner.getTransactionID());
+                    return;
+                }
+
+                try {
+                    stripe.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                owner = stripe.get(accountNumber);
+            }
+            stripe.put(accountNumber, transaction);
+        }
+        transaction.hotLocks.add(accountNumber);
+    }
+
+    /**
+     * Releases the locks of hot accounts held by a transaction whose commit is decided, or which was given up
+     *
+     * @param transaction the transaction
+     */
+    public void unlockAll(Transaction transaction) {
+        Map<Integer, Transaction> stripe;
+        int accountNumber;
+
+        for(int index = 0; index < transaction.hotLocks.size(); index++) {
+            accountNumber = transaction.hotLocks.get(index);
+            stripe = lockStripes.get(stripeIndex(accountNumber));
+
+            synchronized (stripe) {
+                if(stripe.get(accountNumber) == transaction) {
+                    stripe.remove(accountNumber);
+                    stripe.notifyAll();
+                }
+            }
+        }
+        transaction.hotLocks.clear();
+    }
+
+    // maps an account number onto the index of its stripe
+    private static int stripeIndex(int accountNumber) {
+        return accountNumber & (NUMBER_OF_STRIPES - 1);
+    }
+}
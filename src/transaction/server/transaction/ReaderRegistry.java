@@ -0,0 +1,174 @@
+package transaction.server.transaction;
+
+import utils.IntSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class [ReaderRegistry] keeps, for every account, the running transactions that read it. A commit dooms the
+ * readers of the accounts it writes, as their reads are stale and their validation will fail, so they can be
+ * aborted at their next request instead of at their close.
+ * A transaction registers an account after reading it, so a commit racing with the read may miss the reader,
+ * which is then only aborted by its validation, but a reader is never doomed by a write it already read.
+ * Forward validation also asks the registry whether an account has readers, and may wait for them to finish.
+ * Accounts are spread over striped maps, each guarded by its own monitor.
+ *
+ * @author surya and dheeraj
+ */
+public class ReaderRegistry {
+
+    // number of stripes, accounts are mapped onto them by their account number
+    static final int NUMBER_OF_STRIPES = 1024;
+
+    // readers of the accounts, by account number, each map only touched while holding it
+    final List<Map<Integer, List<Transaction>>> stripes = new ArrayList<>(NUMBER_OF_STRIPES);
+
+    // default constructor
+    public ReaderRegistry() {
+        for(int i = 0; i < NUMBER_OF_STRIPES; i++) {
+            stripes.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Registers a transaction as a reader of an account
+     *
+     * @param accountNumber the account read
+     * @param transaction the reading transaction
+     */
+    public void register(int accountNumber, Transaction transaction) {
+        Map<Integer, List<Transaction>> stripe = stripes.get(stripeIndex(accountNumber));
+
+        synchronized (stripe) {
+            stripe.computeIfAbsent(accountNumber, account -> new ArrayList<>(2)).add(transaction);
+        }
+    }
+
+    /**
+     * Removes a transaction from the readers of all accounts in its read set. Called when the transaction
+     * starts committing or is given up, before it can be reused.
+     *
+     * @param transaction the transaction
+     */
+    public void unregister(Transaction transaction) {
+        IntSet readSet = transaction.getReadSet();
+        Map<Integer, List<Transaction>> stripe;
+        List<Transaction> readers;
+        int accountNumber;
+
+        for(int index = 0; index < readSet.size(); index++) {
+            accountNumber = readSet.get(index);
+            stripe = stripes.get(stripeIndex(accountNumber));
+
+            synchronized (stripe) {
+                readers = stripe.get(accountNumber);
+
+                // the registration of the last account read may not have happened
+                if(readers != null && readers.remove(transaction) && readers.isEmpty()) {
+                    stripe.remove(accountNumber);
+
+                    // commits may be waiting for the account to have no readers
+                    stripe.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Dooms the running readers of an account written by a committing transaction, which unregistered itself
+     * when it started committing
+     *
+     * @param accountNumber the account written
+     *
+     * @return the number of readers doomed
+     */
+    public int doomReaders(int accountNumber) {
+        Map<Integer, List<Transaction>> stripe = stripes.get(stripeIndex(accountNumber));
+        List<Transaction> readers;
+
+        synchronized (stripe) {
+            readers = stripe.get(accountNumber);
+
+            if(readers == null) {
+                return 0;
+            }
+
+            // the reader records its abort itself, on its own thread; the account that doomed it is handed over in
+            // the plain conflictingAccount field, which is only published by the volatile write of doomed after it,
+            // as the reader reads it only once it saw doomed set, so the two writes must stay in this order
+            for(Transaction reader : readers) {
+                if(!reader.doomed) {
+                    reader.conflictingAccount = accountNumber;
+                    reader.doomed = true;
+                }
+            }
+
+            // doomed readers are not waited for
+            stripe.notifyAll();
+            return readers.size();
+        }
+    }
+
+    /**
+     * Checks whether running transactions that are not doomed yet read an account
+     *
+     * @param accountNumber the account
+     *
+     * @return true if the account has such readers
+     */
+    public boolean hasReaders(int accountNumber) {
+        Map<Integer, List<Transaction>> stripe = stripes.get(stripeIndex(accountNumber));
+
+        synchronized (stripe) {
+            return hasLiveReader(stripe.get(accountNumber));
+        }
+    }
+
+    /**
+     * Waits until no running transaction that is not doomed yet reads an account anymore, or until the deadline
+     * passes
+     *
+     * @param accountNumber the account
+     * @param deadline the deadline, as returned by System.nanoTime
+     *
+     * @return true if the account has no readers, false if the deadline passed first
+     *
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean awaitNoReaders(int accountNumber, long deadline) throws InterruptedException {
+        Map<Integer, List<Transaction>> stripe = stripes.get(stripeIndex(accountNumber));
+        long remaining;
+
+        synchronized (stripe) {
+            while(hasLiveReader(stripe.get(accountNumber))) {
+                remaining = deadline - System.nanoTime();
+
+                if(remaining <= 0) {
+                    return false;
+                }
+                stripe.wait(remaining / 1000000, (int) (remaining % 1000000));
+            }
+        }
+        return true;
+    }
+
+    // checks whether a list of readers holds one that is not doomed, the caller holds the monitor of its stripe
+    private static boolean hasLiveReader(List<Transaction> readers) {
+        if(readers != null) {
+            for(Transaction reader : readers) {
+                if(!reader.isDoomed()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // maps an account number onto the index of its stripe
+    private static int stripeIndex(int accountNumber) {
+        return accountNumber & (NUMBER_OF_STRIPES - 1);
+    }
+}
@@ -1,14 +1,13 @@
 package transaction.server.transaction;
 
 import transaction.server.TransactionServer;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import utils.IntIntMap;
+import utils.IntSet;
 
 /**
- * class [Transaction] manages read/write operations and captures the transaction logs
+ * class [Transaction] manages read/write operations, what it does is recorded in the event log.
+ * Read and write sets are primitive int sets and maps, and a transaction can be reset and reused, so the
+ * transaction manager keeps finished transactions in a pool instead of allocating new ones.
  *
  * @author dheeraj
  */
@@ -19,12 +18,35 @@ public class Transaction {
     int transactionNumber;
     int lastCommittedTransactionNumber;
 
+    // position of the end of the write-ahead log record of the committed transaction, 0 if there is none
+    long logPosition;
+
+    // whether the transaction was opened read-only, it then can't write
+    boolean readOnly;
+
+    // set by a commit that wrote an account this transaction read, its validation will fail
+    volatile boolean doomed;
+
+    // whether the thread serving the transaction may block for it, false on an event loop or a multiplexed
+    // connection, where waiting would stall the other transactions served by the same thread
+    boolean mayWait = true;
+
+    // account whose r/w conflict failed the validation, or whose write doomed the transaction, 0 if there is none;
+    // a dooming commit writes it before doomed, and the transaction reads it only after it saw doomed set
+    int conflictingAccount;
+
+    // when the client asked to close the transaction, for the commit latency
+    long closeStartTime;
+
     // storage for tentative data
-    List<Integer> readSet = new ArrayList<>();
-    Map<Integer, Integer> writeSet = new HashMap<>();
+    final IntSet readSet = new IntSet();
+    final IntIntMap writeSet = new IntIntMap();
+
+    // versions of the accounts in the read set as they were when first read
+    final IntIntMap readVersions = new IntIntMap();
 
-    // buffer to keep track of logs
-    StringBuffer log = new StringBuffer("");
+    // hot accounts locked by the transaction until its commit is decided
+    final IntSet hotLocks = new IntSet();
 
     /**
      * Constructor for the Transaction class.
@@ -37,6 +59,28 @@ public class Transaction {
         this.lastCommittedTransactionNumber = lastCommittedTransactionNumber;
     }
 
+    /**
+     * Resets a finished transaction so it can be reused for a new one, keeping the capacity of its sets.
+     *
+     * @param transactionID the ID of the new transaction.
+     * @param lastCommittedTransactionNumber the transaction number of the last committed transaction.
+     */
+    void reset(int transactionID, int lastCommittedTransactionNumber) {
+        this.transactionID = transactionID;
+        this.transactionNumber = 0;
+        this.lastCommittedTransactionNumber = lastCommittedTransactionNumber;
+        this.logPosition = 0;
+        this.readOnly = false;
+        this.doomed = false;
+        this.conflictingAccount = 0;
+        this.mayWait = true;
+
+        readSet.clear();
+        writeSet.clear();
+        readVersions.clear();
+        hotLocks.clear();
+    }
+
     /**
      * Reads the balance of the given account number.
      *
@@ -44,18 +88,33 @@ public class Transaction {
      * @return the balance of the given account number.
      */
     public int read(int accountNumber) {
-        Integer balance;
+        int balance;
+        long versionAndBalance;
 
         // check if value to be read was written by the same transaction
-        balance = writeSet.get(accountNumber);
+        int writeSetIndex = writeSet.indexOf(accountNumber);
+
+        if(writeSetIndex >= 0) {
+            balance = writeSet.valueAt(writeSetIndex);
+        } else {
+            // a hot account is locked before its first read, so no other transaction changes it meanwhile
+            if(TransactionManager.contentionManager != null && !readSet.contains(accountNumber)) {
+                TransactionManager.contentionManager.lockIfHot(accountNumber, this);
+            }
+
+            // if not, read the committed version of it as of the start of the transaction, and remember which
+            // version was read
+            versionAndBalance = TransactionServer.accountManager.readAsOf(accountNumber, lastCommittedTransactionNumber);
+            balance = (int) versionAndBalance;
 
-        // if not, read the committed version of it
-        if(balance == null) {
-            balance = TransactionServer.accountManager.read(accountNumber);
+            if(!readVersions.containsKey(accountNumber)) {
+                readVersions.put(accountNumber, (int) (versionAndBalance >>> 32));
+            }
         }
 
-        if(!readSet.contains(accountNumber)) {
-            readSet.add(accountNumber);
+        // the account is registered once it is read, so only commits after the read doom the transaction
+        if(readSet.add(accountNumber) && TransactionManager.readerRegistry != null) {
+            TransactionManager.readerRegistry.register(accountNumber, this);
         }
 
         return balance;
@@ -79,23 +138,64 @@ public class Transaction {
     }
 
     /**
-     * Returns the read set of the transaction.
+     * Reads the balances of the given account numbers, in one step.
+     *
+     * @param accountNumbers the account numbers to read the balances of.
+     * @return the balances, in the order of the account numbers.
+     */
+    public int[] read(int[] accountNumbers) {
+        int[] balances = new int[accountNumbers.length];
+
+        for(int index = 0; index < accountNumbers.length; index++) {
+            balances[index] = read(accountNumbers[index]);
+        }
+        return balances;
+    }
+
+    /**
+     * Writes the given new balances to the accounts with the given account numbers, in one step.
+     *
+     * @param accountNumbers the account numbers to write the new balances to.
+     * @param newBalances the new balances, in the order of the account numbers.
+     * @return the balances the accounts had before, in the order of the account numbers.
+     */
+    public int[] write(int[] accountNumbers, int[] newBalances) {
+        int[] oldBalances = new int[accountNumbers.length];
+
+        for(int index = 0; index < accountNumbers.length; index++) {
+            oldBalances[index] = write(accountNumbers[index], newBalances[index]);
+        }
+        return oldBalances;
+    }
+
+    /**
+     * Returns the read set of the transaction, iterate it with size() and get(index).
      *
      * @return the read set of the transaction.
      */
-    public List<Integer> getReadSet() {
+    public IntSet getReadSet() {
         return readSet;
     }
 
     /**
-     * Returns the write set of the transaction.
+     * Returns the write set of the transaction, iterate it with size(), keyAt(index) and valueAt(index).
      *
      * @return the write set of the transaction.
      */
-    public Map<Integer, Integer> getWriteSet() {
+    public IntIntMap getWriteSet() {
         return writeSet;
     }
 
+    /**
+     * Returns the version of an account in the read set as it was when the transaction first read it.
+     *
+     * @param accountNumber the account number of an account in the read set.
+     * @return the version read.
+     */
+    public int getReadVersion(int accountNumber) {
+        return readVersions.get(accountNumber, 0);
+    }
+
     /**
      * Sets the transaction number of the transaction.
      *
@@ -114,6 +214,33 @@ public class Transaction {
         return transactionNumber;
     }
 
+    /**
+     * Returns the position of the end of the write-ahead log record of the committed transaction.
+     *
+     * @return the log position, 0 if the transaction wasn't logged.
+     */
+    public long getLogPosition() {
+        return logPosition;
+    }
+
+    /**
+     * Returns whether the transaction was opened read-only.
+     *
+     * @return true if the transaction is read-only.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Returns whether a commit wrote an account the transaction read since it read it.
+     *
+     * @return true if the transaction is doomed.
+     */
+    public boolean isDoomed() {
+        return doomed;
+    }
+
     /**
      * Returns the ID of the transaction.
      *
@@ -131,17 +258,4 @@ public class Transaction {
     public int getLastCommittedTransactionNumber() {
         return lastCommittedTransactionNumber;
     }
-
-    /**
-     * Adds log message to the log buffer
-     *
-     * @param logMessage log message
-     */
-    public void log(String logMessage) {
-        log.append(logMessage).append("\n");
-    }
-
-    public StringBuffer getLog() {
-        return log;
-    }
 }
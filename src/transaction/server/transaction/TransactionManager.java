@@ -2,9 +2,24 @@ package transaction.server.transaction;
 
 import transaction.comm.MessageTypes;
 import transaction.server.TransactionServer;
+import transaction.server.account.BalanceAuditor;
+import transaction.server.event.EventLog;
+import transaction.server.event.FlightEvents;
+import transaction.server.metrics.Metrics;
+import transaction.server.wal.Checkpointer;
+import transaction.server.wal.Recovery;
+import transaction.server.wal.WriteAheadLog;
+import utils.IntIntMap;
+import utils.IntSet;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class [TransactionManager] represents singleton transaction manager
@@ -14,19 +29,283 @@ import java.util.*;
 public class TransactionManager implements MessageTypes {
 
     // counter for transaction IDs
-    static int transactionIdCounter = 0;
+    static final AtomicInteger transactionIdCounter = new AtomicInteger(0);
 
     // list of transactions
     static final List<Transaction> runningTransactions = new ArrayList<>();
     static final List<Transaction> abortedTransactions = new ArrayList<>();
-    static final Map<Integer, Transaction> committedTransactions = new HashMap<>();
+
+    // finished transactions kept for reuse, so opening a transaction doesn't allocate in steady state
+    static final int TRANSACTION_POOL_SIZE = 1024;
+    static final BlockingQueue<Transaction> transactionPool = new ArrayBlockingQueue<>(TRANSACTION_POOL_SIZE);
+
+    // write sets of committed transactions that running transactions may still be validated against
+    static CommittedHistory committedHistory = new CommittedHistory();
 
     // counter for transaction numbers
-    static int transactionNumberCounter = 0;
+    static final AtomicInteger transactionNumberCounter = new AtomicInteger(0);
+
+    // number of the newest transaction written in serial and group commit mode, which write in transaction number
+    // order, so its writes and those of all transactions before it are in the accounts
+    static volatile int writtenTransactionNumber = 0;
+
+    // validation modes
+    public static final int BACKWARD_VALIDATION = 1;
+    public static final int VERSION_VALIDATION = 2;
+    public static final int SUMMARY_VALIDATION = 3;
+    public static final int FORWARD_VALIDATION = 4;
+
+    // validation mode in use, backward validation against the committed history by default
+    static int validationMode = BACKWARD_VALIDATION;
+
+    // policies of forward validation for a committing transaction whose write set was read by running ones
+    public static final int ABORT_COMMITTER = 1;
+    public static final int ABORT_READERS = 2;
+    public static final int WAIT_FOR_READERS = 3;
+
+    // forward validation policy in use, and how long WAIT_FOR_READERS waits before aborting the readers instead
+    static int forwardPolicy = ABORT_READERS;
+    static long forwardWaitNanos = 0;
+
+    // commit modes
+    public static final int SERIAL_COMMIT = 1;
+    public static final int PARALLEL_COMMIT = 2;
+    public static final int GROUP_COMMIT = 3;
+
+    // commit mode in use, one global critical section by default
+    static int commitMode = SERIAL_COMMIT;
+
+    // batches closing transactions in group commit mode
+    static CommitSequencer commitSequencer = null;
+
+    // makes committed write sets durable, null if DURABILITY_MODE is NONE
+    static WriteAheadLog writeAheadLog = null;
+
+    // takes periodic checkpoints of the accounts, null if there is no log or CHECKPOINT_INTERVAL_MS is 0
+    static Checkpointer checkpointer = null;
+
+    // whether transactions read the accounts as of their start, so read-only transactions commit without validation
+    static boolean snapshotReads = false;
+
+    // readers of the accounts, doomed by the commits writing them, null if EARLY_ABORT is off
+    static ReaderRegistry readerRegistry = null;
+
+    // locks the accounts causing most conflicts, null if HOT_ACCOUNT_LOCKING is off
+    static ContentionManager contentionManager = null;
+
+    // audits the running total of all balances, null if BALANCE_AUDIT_INTERVAL_MS is 0
+    static BalanceAuditor balanceAuditor = null;
+
+    // transaction numbers drawn by parallel commits that are not written yet, only kept with snapshot reads
+    static final TreeSet<Integer> parallelCommitsInFlight = new TreeSet<>();
 
     // Default constructor
     public TransactionManager() {}
 
+    /**
+     * Custom constructor that configures the transaction manager from the server properties
+     *
+     * @param properties the server properties
+     */
+    public TransactionManager(Properties properties) {
+        String mode = properties.getProperty("VALIDATION_MODE", "BACKWARD");
+
+        if(mode.equalsIgnoreCase("VERSION")) {
+            validationMode = VERSION_VALIDATION;
+        } else if(mode.equalsIgnoreCase("SUMMARY")) {
+            validationMode = SUMMARY_VALIDATION;
+
+            // by default one bit per account, so no two accounts share a bit of the read set summary
+            int summaryBits = Integer.parseInt(properties.getProperty("SUMMARY_BITS", "0"));
+            if(summaryBits == 0) {
+                summaryBits = CommittedHistory.summaryBitsFor(
+                        Integer.parseInt(properties.getProperty("NUMBER_OF_ACCOUNTS", "10")));
+            }
+            try {
+                committedHistory = new CommittedHistory(summaryBits);
+            } catch (IllegalArgumentException ex) {
+                System.out.println(ex.getMessage());
+                System.exit(1);
+            }
+        } else if(mode.equalsIgnoreCase("BACKWARD")) {
+            validationMode = BACKWARD_VALIDATION;
+        } else if(mode.equalsIgnoreCase("FORWARD")) {
+            validationMode = FORWARD_VALIDATION;
+
+            mode = properties.getProperty("FORWARD_POLICY", "ABORT_READERS");
+
+            if(mode.equalsIgnoreCase("ABORT_COMMITTER")) {
+                forwardPolicy = ABORT_COMMITTER;
+            } else if(mode.equalsIgnoreCase("ABORT_READERS")) {
+                forwardPolicy = ABORT_READERS;
+            } else if(mode.equalsIgnoreCase("WAIT")) {
+                forwardPolicy = WAIT_FOR_READERS;
+                forwardWaitNanos = Long.parseLong(properties.getProperty("FORWARD_WAIT_MS", "10")) * 1000000;
+            } else {
+                System.out.println("[TransactionManager.TransactionManager] Unknown FORWARD_POLICY " + mode);
+                System.exit(1);
+            }
+        } else {
+            System.out.println("[TransactionManager.TransactionManager] Unknown VALIDATION_MODE " + mode);
+            System.exit(1);
+        }
+
+        mode = properties.getProperty("COMMIT_MODE", "SERIAL");
+
+        if(mode.equalsIgnoreCase("PARALLEL")) {
+            commitMode = PARALLEL_COMMIT;
+
+            // commits are no longer ordered by transaction number, so the committed history can't be used
+            if(validationMode != VERSION_VALIDATION && validationMode != FORWARD_VALIDATION) {
+                System.out.println("[TransactionManager.TransactionManager] COMMIT_MODE PARALLEL validates " +
+                        "per-account versions, using VALIDATION_MODE VERSION");
+                validationMode = VERSION_VALIDATION;
+            }
+        } else if(mode.equalsIgnoreCase("GROUP")) {
+            commitMode = GROUP_COMMIT;
+
+            commitSequencer = new CommitSequencer(
+                    Long.parseLong(properties.getProperty("GROUP_COMMIT_WINDOW_MS", "2")),
+                    Integer.parseInt(properties.getProperty("GROUP_COMMIT_BATCH_SIZE", "64")));
+            commitSequencer.start();
+        } else if(mode.equalsIgnoreCase("SERIAL")) {
+            commitMode = SERIAL_COMMIT;
+        } else {
+            System.out.println("[TransactionManager.TransactionManager] Unknown COMMIT_MODE " + mode);
+            System.exit(1);
+        }
+
+        snapshotReads = Boolean.parseBoolean(properties.getProperty("SNAPSHOT_READS", "false"));
+
+        if(snapshotReads) {
+            long reclaimInterval = Long.parseLong(properties.getProperty("VERSION_RECLAIM_INTERVAL_MS", "100"));
+
+            TransactionServer.accountManager.enableSnapshotReads();
+
+            // older account versions are reclaimed once no running transaction reads as of them anymore
+            Thread versionReclaimer = new Thread(() -> {
+                while(true) {
+                    try {
+                        Thread.sleep(reclaimInterval);
+                    } catch (InterruptedException ex) {
+                        System.out.println("[TransactionManager.versionReclaimer] Interrupted, stopping reclamation");
+                        return;
+                    }
+                    TransactionServer.accountManager.reclaimVersions(getLowWatermark());
+                }
+            }, "VersionReclaimer");
+            versionReclaimer.setDaemon(true);
+            versionReclaimer.start();
+        }
+
+        // doomed transactions are aborted at their next read or write instead of at their close; forward
+        // validation finds the readers of a write set in the reader registry
+        if(Boolean.parseBoolean(properties.getProperty("EARLY_ABORT", "false")) || validationMode == FORWARD_VALIDATION) {
+            readerRegistry = new ReaderRegistry();
+        }
+
+        // accounts with many conflicts are handled pessimistically
+        if(Boolean.parseBoolean(properties.getProperty("HOT_ACCOUNT_LOCKING", "false"))) {
+
+            // a transaction waiting for a hot account reads it after commits newer than its start: its snapshot
+            // would be stale, and the validation has to compare the versions read instead of its start number
+            if(snapshotReads) {
+                System.out.println("[TransactionManager.TransactionManager] HOT_ACCOUNT_LOCKING doesn't work with " +
+                        "SNAPSHOT_READS, hot accounts are not locked");
+            } else {
+                if(validationMode == BACKWARD_VALIDATION || validationMode == SUMMARY_VALIDATION) {
+                    System.out.println("[TransactionManager.TransactionManager] HOT_ACCOUNT_LOCKING validates the " +
+                            "versions read, using VALIDATION_MODE VERSION");
+                    validationMode = VERSION_VALIDATION;
+                }
+                contentionManager = new ContentionManager(
+                        Integer.parseInt(properties.getProperty("HOT_ACCOUNT_THRESHOLD", "8")),
+                        Long.parseLong(properties.getProperty("HOT_ACCOUNT_DECAY_MS", "1000")),
+                        Long.parseLong(properties.getProperty("HOT_LOCK_TIMEOUT_MS", "20")));
+                contentionManager.start();
+            }
+        }
+
+        mode = properties.getProperty("DURABILITY_MODE", "NONE");
+
+        if(!mode.equalsIgnoreCase("NONE")) {
+            int durabilityMode = 0;
+
+            if(mode.equalsIgnoreCase("ASYNC")) {
+                durabilityMode = WriteAheadLog.ASYNC_DURABILITY;
+            } else if(mode.equalsIgnoreCase("GROUP")) {
+                durabilityMode = WriteAheadLog.GROUP_DURABILITY;
+            } else if(mode.equalsIgnoreCase("SYNC")) {
+                durabilityMode = WriteAheadLog.SYNC_DURABILITY;
+            } else {
+                System.out.println("[TransactionManager.TransactionManager] Unknown DURABILITY_MODE " + mode);
+                System.exit(1);
+            }
+
+            File walDirectory = new File(properties.getProperty("WAL_DIRECTORY", "wal"));
+            long checkpointInterval = Long.parseLong(properties.getProperty("CHECKPOINT_INTERVAL_MS", "60000"));
+
+            try {
+                // restore the accounts from the newest checkpoint and the log written since
+                if(walDirectory.isDirectory()) {
+                    int lastTransactionNumber = new Recovery(walDirectory, TransactionServer.accountManager).recover();
+
+                    transactionNumberCounter.set(lastTransactionNumber);
+                    writtenTransactionNumber = lastTransactionNumber;
+                    committedHistory.truncate(lastTransactionNumber);
+                }
+
+                writeAheadLog = new WriteAheadLog(walDirectory,
+                        Integer.parseInt(properties.getProperty("WAL_SEGMENT_SIZE", "16777216")),
+                        durabilityMode,
+                        Long.parseLong(properties.getProperty("WAL_FLUSH_INTERVAL_MS", "10")));
+            } catch (IOException ex) {
+                System.out.println("[TransactionManager.TransactionManager] couldn't recover or open the write-ahead log");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+
+            if(checkpointInterval > 0) {
+                checkpointer = new Checkpointer(writeAheadLog, TransactionServer.accountManager, runningTransactions,
+                        checkpointInterval);
+                checkpointer.start();
+            }
+        }
+
+        // the audit holds off all commits for a pass over the accounts, so it is off unless asked for
+        long auditInterval = Long.parseLong(properties.getProperty("BALANCE_AUDIT_INTERVAL_MS", "0"));
+
+        // parallel commits install their write sets under the latches of their accounts, not the commit lock
+        if(auditInterval > 0) {
+            balanceAuditor = new BalanceAuditor(TransactionServer.accountManager,
+                    commitMode == PARALLEL_COMMIT ? null : runningTransactions, auditInterval);
+            balanceAuditor.start();
+        }
+
+        registerGauges();
+    }
+
+    /**
+     * Registers the gauges of the transaction manager with the metrics. None of them takes the commit lock.
+     */
+    static void registerGauges() {
+        Metrics.registerGauge("total_balance", TransactionServer.accountManager::getTotalBalance);
+        Metrics.registerGauge("committed_history_size", committedHistory::size);
+        Metrics.registerGauge("event_log_dropped_events", EventLog::getDroppedEvents);
+
+        if(commitSequencer != null) {
+            Metrics.registerGauge("commit_queue_depth", () -> commitSequencer.pendingCommits.size());
+        }
+        if(contentionManager != null) {
+            Metrics.registerGauge("hot_accounts", () -> contentionManager.hotAccounts.size());
+        }
+        if(balanceAuditor != null) {
+            Metrics.registerGauge("balance_audits", balanceAuditor::getAudits);
+            Metrics.registerGauge("balance_audit_drifts", balanceAuditor::getDrifts);
+            Metrics.registerGauge("balance_audit_last_drift", balanceAuditor::getLastDrift);
+        }
+    }
+
     /**
      * Gets the list of aborted transactions
      *
@@ -45,6 +324,389 @@ public class TransactionManager implements MessageTypes {
         (new TransactionManagerWorker(client)).start();
     }
 
+    /**
+     * Opens a new transaction and adds it to the list of running transactions. A pooled transaction is reused
+     * if there is one.
+     *
+     * @return the new transaction
+     */
+    public static Transaction openTransaction() {
+        return openTransaction(false);
+    }
+
+    /**
+     * Opens a new transaction like openTransaction. A read-only transaction can't write, and it is validated
+     * against the account versions alone, so it is only added to the running transactions if snapshot reads
+     * need it for the low watermark.
+     *
+     * @param readOnly whether the transaction is read-only
+     *
+     * @return the new transaction
+     */
+    public static Transaction openTransaction(boolean readOnly) {
+        Transaction transaction = transactionPool.poll();
+
+        Metrics.countOpened();
+
+        if(readOnly && !snapshotReads) {
+            transaction = newTransaction(transaction, getVisibleTransactionNumber());
+            transaction.readOnly = true;
+            return transaction;
+        }
+
+        synchronized (runningTransactions) {
+            // create new transaction, assign a new transaction ID, also pass in the last assigned transaction number
+            transaction = newTransaction(transaction, getVisibleTransactionNumber());
+            transaction.readOnly = readOnly;
+
+            // add the transaction to the list of current running transactions
+            runningTransactions.add(transaction);
+        }
+        return transaction;
+    }
+
+    // creates a transaction with a new transaction ID, or resets the pooled one if there is one
+    private static Transaction newTransaction(Transaction pooledTransaction, int lastCommittedTransactionNumber) {
+        if(pooledTransaction == null) {
+            return new Transaction(transactionIdCounter.incrementAndGet(), lastCommittedTransactionNumber);
+        }
+        pooledTransaction.reset(transactionIdCounter.incrementAndGet(), lastCommittedTransactionNumber);
+        return pooledTransaction;
+    }
+
+    /**
+     * Returns the number of the newest transaction whose writes, and those of all transactions before it, are in
+     * the accounts. Parallel commits write out of transaction number order, so with snapshot reads the number
+     * stops below the oldest parallel commit that is still being written.
+     *
+     * @return the transaction number a transaction opened now reads as of
+     */
+    static int getVisibleTransactionNumber() {
+        if(snapshotReads && commitMode == PARALLEL_COMMIT) {
+            synchronized (parallelCommitsInFlight) {
+                if(!parallelCommitsInFlight.isEmpty()) {
+                    return parallelCommitsInFlight.first() - 1;
+                }
+                return transactionNumberCounter.get();
+            }
+        }
+        return transactionNumberCounter.get();
+    }
+
+    /**
+     * Returns the low watermark: the oldest transaction number a running transaction reads as of. As transactions
+     * are appended to runningTransactions in the order they start, the first running transaction is the one with
+     * the oldest start number.
+     *
+     * @return the low watermark
+     */
+    static int getLowWatermark() {
+        synchronized (runningTransactions) {
+            if(runningTransactions.isEmpty()) {
+                return getVisibleTransactionNumber();
+            }
+            return runningTransactions.get(0).getLastCommittedTransactionNumber();
+        }
+    }
+
+    /**
+     * Returns a closed transaction to the pool. The caller must not use the transaction afterwards.
+     *
+     * @param transaction the closed transaction
+     */
+    static void releaseTransaction(Transaction transaction) {
+        transactionPool.offer(transaction);
+    }
+
+    /**
+     * Closes a transaction: validates it and, if the validation is successful, writes its write set into the
+     * operational data. No network communication happens in here, the caller replies to the client after the
+     * commit has finished. With a write-ahead log, a committed transaction is only reported once its log
+     * record is durable.
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a flag indicating whether the transaction is committed or aborted
+     */
+    public static boolean commitTransaction(Transaction transaction) {
+        return commitTransactionAsync(transaction).join();
+    }
+
+    /**
+     * Closes a transaction like commitTransaction, but doesn't wait for a group commit batch to finish or for
+     * the log record to become durable
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a future completed with true if the transaction is committed, false if it is aborted
+     */
+    public static CompletableFuture<Boolean> commitTransactionAsync(Transaction transaction) {
+        CompletableFuture<Boolean> committed;
+
+        // commits from now on no longer doom the transaction
+        if(readerRegistry != null) {
+            readerRegistry.unregister(transaction);
+        }
+
+        // a read-only transaction has nothing to write, so it never enters the commit critical section
+        if(transaction.getWriteSet().isEmpty()) {
+            committed = CompletableFuture.completedFuture(commitReadOnly(transaction));
+            releaseHotLocks(transaction);
+            return committed;
+        }
+
+        // readers are waited for before the commit critical section, which their own commits need; a transaction
+        // that may not wait dooms them right away, like ABORT_READERS
+        if(validationMode == FORWARD_VALIDATION && forwardPolicy == WAIT_FOR_READERS && transaction.mayWait) {
+            awaitReaders(transaction);
+        }
+
+        if(commitMode == GROUP_COMMIT) {
+            committed = commitSequencer.submit(transaction);
+        } else if(commitMode == PARALLEL_COMMIT) {
+            committed = CompletableFuture.completedFuture(commitTransactionParallel(transaction));
+        } else {
+            committed = CompletableFuture.completedFuture(commitTransactionSerial(transaction));
+        }
+
+        // the locks of hot accounts are held until the write set is written, not until it is durable
+        if(contentionManager != null) {
+            committed = committed.whenComplete((isCommitted, ex) -> releaseHotLocks(transaction));
+        }
+
+        if(writeAheadLog == null) {
+            return committed;
+        }
+
+        // a committed transaction is only reported once its log record is durable
+        return committed.thenCompose(isCommitted -> {
+            if(!isCommitted || transaction.getLogPosition() == 0) {
+                return CompletableFuture.completedFuture(isCommitted);
+            }
+            return writeAheadLog.durable(transaction.getLogPosition()).thenApply(durable -> true);
+        });
+    }
+
+    /**
+     * Closes a transaction inside the global critical section
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a flag indicating whether the transaction is committed or aborted
+     */
+    static boolean commitTransactionSerial(Transaction transaction) {
+        FlightEvents.CommitLockWait lockWait = FlightEvents.beginCommitLockWait();
+
+        synchronized (runningTransactions) {
+            if(lockWait != null) {
+                lockWait.finish(transaction.getTransactionID(), 1);
+            }
+
+            // remove the transaction from the list of current running transactions
+            runningTransactions.remove(transaction);
+
+            if(validateTransaction(transaction)) {
+
+                // add the write set of the transaction to the committed history
+                recordCommittedTransaction(transaction);
+
+                // write data to the operational data
+                writeTransaction(transaction);
+
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes a transaction that wrote nothing. It takes no transaction number and leaves no trace in the committed
+     * history. With snapshot reads it read a consistent snapshot, so there is nothing to validate; otherwise its
+     * reads are validated against the current account versions.
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a flag indicating whether the transaction is committed or aborted
+     */
+    static boolean commitReadOnly(Transaction transaction) {
+        if(!transaction.isReadOnly() || snapshotReads) {
+            synchronized (runningTransactions) {
+                runningTransactions.remove(transaction);
+            }
+        }
+
+        if(snapshotReads) {
+            EventLog.record(EventLog.VALIDATED, transaction.getTransactionID(), 0, 0);
+            return true;
+        }
+
+        FlightEvents.Validation validation = FlightEvents.beginValidation();
+        long startTime = Metrics.startTimer();
+        boolean valid = validateReadOnly(transaction);
+
+        Metrics.recordPhase(Metrics.VALIDATE, startTime);
+        finishValidation(validation, transaction, transactionNumberCounter.get(), valid);
+        if(!valid) {
+            return false;
+        }
+
+        EventLog.record(EventLog.VALIDATED, transaction.getTransactionID(), 0, 0);
+        return true;
+    }
+
+    /**
+     * Validates a read-only transaction without any global lock. Its reads are consistent if every account read
+     * still has the version that was read, as then all of them held the values read at the moment the validation
+     * started. A commit that was being written at that moment must not have written any of them yet: parallel
+     * commits hold the latches of all their accounts until they are completely written, which reading an account
+     * waits for, and in serial and group commit mode no account may carry a version newer than the written ones.
+     *
+     * @param transaction Transaction to be validated
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    static boolean validateReadOnly(Transaction transaction) {
+        int writtenNumber = commitMode == PARALLEL_COMMIT ? Integer.MAX_VALUE : writtenTransactionNumber;
+        IntSet readSet = transaction.getReadSet();
+        int account;
+        int version;
+
+        for(int index = 0; index < readSet.size(); index++) {
+            account = readSet.get(index);
+            version = (int) (TransactionServer.accountManager.readWithVersion(account) >>> 32);
+
+            if(version != transaction.getReadVersion(account) || version > writtenNumber) {
+                recordConflict(transaction, account);
+                EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), account, version);
+
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops a transaction the client gave up before closing it
+     *
+     * @param transaction the abandoned transaction
+     */
+    static void abandonTransaction(Transaction transaction) {
+        synchronized (runningTransactions) {
+            runningTransactions.remove(transaction);
+        }
+        if(readerRegistry != null) {
+            readerRegistry.unregister(transaction);
+        }
+        releaseHotLocks(transaction);
+        releaseTransaction(transaction);
+    }
+
+    /**
+     * Releases the locks of hot accounts a transaction holds
+     *
+     * @param transaction the transaction whose commit is decided, or which was given up
+     */
+    static void releaseHotLocks(Transaction transaction) {
+        if(contentionManager != null) {
+            contentionManager.unlockAll(transaction);
+        }
+    }
+
+    /**
+     * Counts a r/w conflict found by validation on an account, in the metrics and towards handling the account
+     * pessimistically, and remembers the account as the one that failed the transaction
+     *
+     * @param transaction the transaction failing its validation
+     * @param account the account
+     */
+    static void recordConflict(Transaction transaction, int account) {
+        transaction.conflictingAccount = account;
+        Metrics.recordConflict(account);
+
+        if(contentionManager != null) {
+            contentionManager.recordConflict(account);
+        }
+    }
+
+    /**
+     * Checks whether a running transaction is doomed, i.e. a commit wrote an account it read, so it can be
+     * aborted before its next request. With snapshot reads a doomed transaction still commits if it writes
+     * nothing, so it is only doomed once it writes.
+     *
+     * @param transaction the running transaction
+     * @param writing whether the transaction is about to write
+     *
+     * @return true if the transaction can only abort
+     */
+    static boolean isDoomed(Transaction transaction, boolean writing) {
+        return transaction.isDoomed() && (writing || !snapshotReads);
+    }
+
+    /**
+     * Closes a transaction without the global critical section. The latches of all accounts read or written
+     * are taken in ascending order, the read set is validated against the current account versions and the
+     * write set is installed while they are held. Transactions touching disjoint accounts therefore commit in
+     * parallel; only removing the transaction from the running transactions and drawing the transaction
+     * number are global, short, atomic steps.
+     *
+     * @param transaction Transaction to be closed
+     *
+     * @return a flag indicating whether the transaction is committed or aborted
+     */
+    static boolean commitTransactionParallel(Transaction transaction) {
+        FlightEvents.CommitLockWait lockWait;
+        FlightEvents.Validation validation;
+        int[] latches;
+        long startTime;
+        boolean valid;
+
+        synchronized (runningTransactions) {
+            runningTransactions.remove(transaction);
+        }
+
+        // every written account is also in the read set, as a write reads the account first
+        lockWait = FlightEvents.beginCommitLockWait();
+        latches = TransactionServer.accountManager.lockAccounts(transaction.getReadSet().toArray());
+        if(lockWait != null) {
+            lockWait.finish(transaction.getTransactionID(), 1);
+        }
+        try {
+            validation = FlightEvents.beginValidation();
+            startTime = Metrics.startTimer();
+            valid = validateReadVersions(transaction)
+                    && (validationMode != FORWARD_VALIDATION || validateForward(transaction));
+            Metrics.recordPhase(Metrics.VALIDATE, startTime);
+            finishValidation(validation, transaction, transactionNumberCounter.get(), valid);
+
+            if(!valid) {
+                return false;
+            }
+
+            EventLog.record(EventLog.VALIDATED, transaction.getTransactionID(), 0, 0);
+
+            if(snapshotReads) {
+                // transactions opened while this one is being written must not read as of its number
+                synchronized (parallelCommitsInFlight) {
+                    transaction.setTransactionNumber(transactionNumberCounter.incrementAndGet());
+                    parallelCommitsInFlight.add(transaction.getTransactionNumber());
+                }
+                try {
+                    writeTransaction(transaction);
+                } finally {
+                    synchronized (parallelCommitsInFlight) {
+                        parallelCommitsInFlight.remove(transaction.getTransactionNumber());
+                    }
+                }
+            } else {
+                transaction.setTransactionNumber(transactionNumberCounter.incrementAndGet());
+                writeTransaction(transaction);
+            }
+        } finally {
+            TransactionServer.accountManager.unlockAccounts(latches);
+        }
+        return true;
+    }
+
     /**
      * Validates the transaction by following OCC principle
      *
@@ -53,77 +715,311 @@ public class TransactionManager implements MessageTypes {
      * @return a flag indicating whether the validation is successful or not
      */
     public static boolean validateTransaction(Transaction transaction) {
+        FlightEvents.Validation validation = FlightEvents.beginValidation();
+        long startTime = Metrics.startTimer();
         int transactionNumber;
-        int lastCommittedTransactionNumber;
-        int transactionNumberIndex;
-
-        List<Integer> readSet = transaction.getReadSet();
-        Map<Integer, Integer> committedTransactionWriteSet;
-        Iterator<Integer> readSetIterator;
-
-        Transaction committedTransaction;
-        Integer committedAccount;
+        boolean valid;
 
         // assign transaction number
-        transactionNumber = ++transactionNumberCounter;
+        transactionNumber = transactionNumberCounter.incrementAndGet();
         transaction.setTransactionNumber(transactionNumber);
 
+        // with hot account locking the versions read are compared, as accounts may be read after newer commits
+        if(validationMode == VERSION_VALIDATION) {
+            valid = contentionManager != null ? validateReadVersions(transaction) : validateVersions(transaction);
+        } else if(validationMode == FORWARD_VALIDATION) {
+            valid = (contentionManager != null ? validateReadVersions(transaction) : validateVersions(transaction))
+                    && validateForward(transaction);
+        } else {
+            valid = validateBackward(transaction, transactionNumber);
+        }
+
+        if(valid) {
+            EventLog.record(EventLog.VALIDATED, transaction.getTransactionID(), 0, 0);
+        }
+        Metrics.recordPhase(Metrics.VALIDATE, startTime);
+        finishValidation(validation, transaction, transactionNumber - 1, valid);
+        return valid;
+    }
+
+    // writes the flight recorder event of a validation, if there is one; the window is made of the transactions
+    // committed between the start of the transaction and the newest transaction number it was validated against
+    private static void finishValidation(FlightEvents.Validation validation, Transaction transaction,
+                                         int newestTransactionNumber, boolean valid) {
+        if(validation != null) {
+            validation.finish(transaction.getTransactionID(),
+                    Math.max(0, newestTransactionNumber - transaction.getLastCommittedTransactionNumber()),
+                    transaction.getReadSet().size(), valid, valid ? 0 : transaction.conflictingAccount);
+        }
+    }
+
+    /**
+     * Backward validation: checks the read set of the transaction against the write sets of all transactions
+     * committed after it started. In summary validation mode, a committed write set is tested against a bitmap
+     * of the read set and only checked exactly if it may overlap.
+     *
+     * @param transaction Transaction to be validated
+     * @param transactionNumber the transaction number assigned to the transaction
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    static boolean validateBackward(Transaction transaction, int transactionNumber) {
+        int lastCommittedTransactionNumber;
+
+        IntSet readSet = transaction.getReadSet();
+        long[] readSetSummary = null;
+
+        if(validationMode == SUMMARY_VALIDATION) {
+            readSetSummary = committedHistory.summarize(readSet);
+        }
+
         // get last committed transaction number; the number before this transaction is started
         lastCommittedTransactionNumber = transaction.getLastCommittedTransactionNumber();
 
-        for(transactionNumberIndex = lastCommittedTransactionNumber+1; transactionNumberIndex < transactionNumber; transactionNumberIndex++) {
+        try {
+            return validateWindow(transaction, readSet, readSetSummary, lastCommittedTransactionNumber, transactionNumber);
+        } finally {
+            // the summary is shared by all validations
+            if(readSetSummary != null) {
+                committedHistory.clearSummary(readSet);
+            }
+        }
+    }
 
-            // get transaction details which is already committed
-            committedTransaction = committedTransactions.get(transactionNumberIndex);
+    /**
+     * Checks a read set against the write sets of the transactions committed between two transaction numbers
+     *
+     * @param transaction Transaction to be validated
+     * @param readSet its read set
+     * @param readSetSummary the summary of the read set, null to check every write set exactly
+     * @param lastCommittedTransactionNumber the last transaction number committed before it started
+     * @param transactionNumber the transaction number assigned to the transaction
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    private static boolean validateWindow(Transaction transaction, IntSet readSet, long[] readSetSummary,
+                                          int lastCommittedTransactionNumber, int transactionNumber) {
+        int transactionNumberIndex;
+        int[] committedTransactionWriteSet;
 
-            // make sure transaction with transactionNumberIndex was not aborted before
-            if(committedTransaction != null) {
+        for(transactionNumberIndex = lastCommittedTransactionNumber+1; transactionNumberIndex < transactionNumber; transactionNumberIndex++) {
 
-                // check our own read set against the write set of checked transaction
-                committedTransactionWriteSet = committedTransaction.getWriteSet();
+            // skip the transaction if its write set definitely doesn't overlap with our read set
+            if(readSetSummary != null && !committedHistory.mayOverlap(transactionNumberIndex, readSetSummary)) {
+                continue;
+            }
 
-                readSetIterator = readSet.iterator();
+            // get write set of the transaction which is already committed
+            committedTransactionWriteSet = committedHistory.getWriteSet(transactionNumberIndex);
 
-                while(readSetIterator.hasNext()) {
+            // make sure transaction with transactionNumberIndex was not aborted before
+            if(committedTransactionWriteSet != null) {
 
-                    // is an account in the read set part of the write set in the committedTransaction?
-                    committedAccount = readSetIterator.next();
+                // check our own read set against the write set of checked transaction
+                for(int committedAccount : committedTransactionWriteSet) {
 
-                    if(committedTransactionWriteSet.containsKey(committedAccount)) {
-                        transaction.log("[TransactionManager.validateTransaction] Transaction #" +
-                                transaction.getTransactionID() + "failed: r/w conflict of an Account #" + committedAccount
-                                + " with Transaction #" + committedTransaction.getTransactionID());
+                    // is an account in the write set of the committed transaction part of our read set?
+                    if(readSet.contains(committedAccount)) {
+                        recordConflict(transaction, committedAccount);
+                        EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), committedAccount, transactionNumberIndex);
 
                         return false;
                     }
                 }
             }
         }
+        return true;
+    }
+
+    /**
+     * Version validation: every account carries the number of the last committed transaction that wrote it,
+     * so a read is stale exactly when the version of the account is newer than the last committed transaction
+     * number seen when the transaction started. Gives the same results as backward validation at a cost
+     * proportional to the read set instead of the committed history.
+     *
+     * @param transaction Transaction to be validated
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    static boolean validateVersions(Transaction transaction) {
+        int lastCommittedTransactionNumber = transaction.getLastCommittedTransactionNumber();
+        IntSet readSet = transaction.getReadSet();
+        int account;
+        int version;
+
+        for(int index = 0; index < readSet.size(); index++) {
+            account = readSet.get(index);
+            version = TransactionServer.accountManager.getVersion(account);
+
+            if(version > lastCommittedTransactionNumber) {
+                recordConflict(transaction, account);
+                EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), account, version);
+
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validates the read set of the transaction against the current account versions: an account read is
+     * stale exactly when a transaction committed a write to it since, i.e. when its version changed. The
+     * caller must hold the latches of all accounts in the read set, or be in the commit critical section of
+     * serial or group commit mode.
+     *
+     * @param transaction Transaction to be validated
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    static boolean validateReadVersions(Transaction transaction) {
+        IntSet readSet = transaction.getReadSet();
+        int account;
+        int version;
 
-        transaction.log("[TransactionManager.validateTransaction] Transaction #" + transaction.getTransactionID() +
-                " successfully validated");
+        for(int index = 0; index < readSet.size(); index++) {
+            account = readSet.get(index);
+            version = TransactionServer.accountManager.getVersion(account);
+
+            if(version != transaction.getReadVersion(account)) {
+                recordConflict(transaction, account);
+                EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), account, version);
+
+                return false;
+            }
+        }
         return true;
     }
 
     /**
-     * writes the write set of a transaction into the operational data
+     * Forward validation: checks the write set of the transaction against the read sets of the running
+     * transactions, instead of its read set against the committed history, which is therefore not kept.
+     * A running transaction that read an account of the write set would fail its own validation once the
+     * transaction commits; depending on the policy, the transaction is aborted in its place (ABORT_COMMITTER),
+     * or it commits and dooms the readers (ABORT_READERS, and WAIT_FOR_READERS once the wait is over).
+     * A transaction doomed by an earlier commit fails right away.
+     * The read set of the transaction is still checked against the account versions by the caller: it may have
+     * raced a commit while registering its reads, which the commit then didn't see.
+     *
+     * @param transaction Transaction to be validated
+     *
+     * @return a flag indicating whether the validation is successful or not
+     */
+    static boolean validateForward(Transaction transaction) {
+        IntIntMap writeSet = transaction.getWriteSet();
+        int account;
+
+        if(transaction.isDoomed()) {
+            EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), 0, 0);
+
+            return false;
+        }
+
+        if(forwardPolicy != ABORT_COMMITTER) {
+            // the readers are doomed while the write set is written
+            return true;
+        }
+
+        for(int index = 0; index < writeSet.size(); index++) {
+            account = writeSet.keyAt(index);
+
+            if(readerRegistry.hasReaders(account)) {
+                recordConflict(transaction, account);
+                EventLog.record(EventLog.CONFLICT, transaction.getTransactionID(), account, 0);
+
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no running transaction reads an account of the write set of a transaction anymore, for at
+     * most FORWARD_WAIT_MS. The readers left over are doomed when the transaction commits.
+     *
+     * @param transaction the committing transaction, which isn't a registered reader anymore
+     */
+    static void awaitReaders(Transaction transaction) {
+        IntIntMap writeSet = transaction.getWriteSet();
+        long deadline = System.nanoTime() + forwardWaitNanos;
+
+        try {
+            for(int index = 0; index < writeSet.size(); index++) {
+                if(!readerRegistry.awaitNoReaders(writeSet.keyAt(index), deadline)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the write set of a committed transaction in the committed history, which is only needed by
+     * backward and summary validation, and drops the history entries below the low watermark. The caller holds
+     * the runningTransactions lock.
+     *
+     * @param transaction the committed transaction
+     */
+    static void recordCommittedTransaction(Transaction transaction) {
+        int lowWatermark;
+
+        if(validationMode == BACKWARD_VALIDATION || validationMode == SUMMARY_VALIDATION) {
+            committedHistory.add(transaction.getTransactionNumber(), transaction.getTransactionID(),
+                    transaction.getWriteSet().keysToArray());
+        }
+
+        lowWatermark = getLowWatermark();
+        committedHistory.truncate(lowWatermark);
+    }
+
+    /**
+     * writes the write set of a transaction into the operational data, after appending it to the write-ahead log
      *
      * @param transaction Transaction to be written
      */
     public static void writeTransaction(Transaction transaction) {
-        Map<Integer, Integer> transactionWriteSet = transaction.getWriteSet();
+        IntIntMap transactionWriteSet = transaction.getWriteSet();
+        FlightEvents.WriteInstall install = FlightEvents.beginWriteInstall();
+        long startTime = Metrics.startTimer();
         int account;
         int balance;
+        long delta = 0;
+
+        if(writeAheadLog != null && !transactionWriteSet.isEmpty()) {
+            try {
+                transaction.logPosition = writeAheadLog.append(transaction.getTransactionNumber(), transactionWriteSet);
+            } catch (IOException ex) {
+                System.out.println("[TransactionManager.writeTransaction] couldn't append to the write-ahead log");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+        }
 
         // get all the entries of a write set
-        for (Map.Entry<Integer, Integer> entry : transactionWriteSet.entrySet()) {
-            account = entry.getKey();
-            balance = entry.getValue();
+        for (int index = 0; index < transactionWriteSet.size(); index++) {
+            account = transactionWriteSet.keyAt(index);
+            balance = transactionWriteSet.valueAt(index);
+
+            delta += balance - TransactionServer.accountManager.write(account, balance, transaction.getTransactionNumber());
+
+            if(readerRegistry != null) {
+                readerRegistry.doomReaders(account);
+            }
 
-            TransactionServer.accountManager.write(account, balance);
+            EventLog.record(EventLog.WRITTEN, transaction.getTransactionID(), account, balance);
+        }
 
-            transaction.log("[TransactionManager.writeTransaction] Transaction #" + transaction.getTransactionID() +
-                    " is written");
+        // a transfer leaves the total unchanged, it then isn't touched at all
+        if(delta != 0) {
+            TransactionServer.accountManager.addToTotalBalance(delta);
+        }
+
+        if(commitMode != PARALLEL_COMMIT) {
+            writtenTransactionNumber = transaction.getTransactionNumber();
+        }
+        Metrics.recordPhase(Metrics.INSTALL, startTime);
+        if(install != null) {
+            install.finish(transaction.getTransactionID(), transaction.getTransactionNumber(), transactionWriteSet.size());
         }
     }
 }
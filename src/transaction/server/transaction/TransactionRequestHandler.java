@@ -0,0 +1,481 @@
+package transaction.server.transaction;
+
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.exception.SnapshotTooOldException;
+import transaction.exception.TransactionAbortedException;
+import transaction.server.TransactionServer;
+import transaction.server.event.EventLog;
+import transaction.server.event.FlightEvents;
+import transaction.server.metrics.Metrics;
+import transaction.server.procedure.ProcedureRegistry;
+import transaction.server.procedure.StoredProcedure;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * class [TransactionRequestHandler] processes the requests of one client connection and produces the replies.
+ * It holds no network resources, so it serves both the thread-per-connection TransactionManagerWorker and the
+ * event loops of the NIO server.
+ * On a multiplexed connection requests are tagged with a request ID, and with the ID of the transaction they
+ * belong to, so many transactions can be open on the connection at the same time; replies carry the same tags.
+ * A transaction that can only abort is given up at its next read or write, which is answered with
+ * TRANSACTION_ABORTED, as is any later request of it still in flight.
+ *
+ * @author surya and dheeraj
+ */
+public class TransactionRequestHandler implements MessageTypes {
+
+    // transaction currently opened by the client on an untagged connection, null if there is none
+    Transaction transaction = null;
+
+    // transactions opened by the client on a multiplexed connection, by transaction ID
+    final Map<Integer, Transaction> taggedTransactions = new HashMap<>();
+
+    // whether the thread serving the connection may block for a transaction, false on an event loop
+    final boolean mayWait;
+
+    /**
+     * Default constructor, for a connection served by a thread of its own
+     */
+    public TransactionRequestHandler() {
+        this(true);
+    }
+
+    /**
+     * Custom constructor
+     *
+     * @param mayWait whether the thread serving the connection may block for a transaction, i.e. it serves no
+     *                other connection
+     */
+    public TransactionRequestHandler(boolean mayWait) {
+        this.mayWait = mayWait;
+    }
+
+    /**
+     * Processes a request and returns the reply. Closing a transaction waits until it is committed or aborted,
+     * use commitAsync and finishClose instead where waiting is not an option.
+     *
+     * @param message the request
+     *
+     * @return the reply, or null if the request has no reply
+     */
+    public Message handle(Message message) {
+        Transaction transaction;
+        Integer result;
+        int accountNumber;
+        int balance;
+        int[] accountNumbers;
+        int[] balances;
+        long startTime;
+        FlightEvents.Open openEvent;
+        FlightEvents.Read readEvent;
+        FlightEvents.Write writeEvent;
+
+        // processing message
+        switch (message.getType()) {
+            // =========================================================================================================
+            case OPEN_TRANSACTION:
+            // =========================================================================================================
+                openEvent = FlightEvents.beginOpen();
+                startTime = Metrics.startTimer();
+
+                // an untagged connection carries one transaction at a time, one the client didn't close is given up
+                if(message.getRequestID() == 0 && this.transaction != null) {
+                    countAborted(this.transaction, Metrics.ABANDONED);
+                    TransactionManager.abandonTransaction(this.transaction);
+                    this.transaction = null;
+                }
+
+                // create new transaction and add it to the list of current running transactions
+                transaction = TransactionManager.openTransaction(message.getContent() != null
+                        && ((Integer) message.getContent() & READ_ONLY) != 0);
+
+                if(message.getRequestID() != 0) {
+                    taggedTransactions.put(transaction.getTransactionID(), transaction);
+                } else {
+                    this.transaction = transaction;
+                }
+
+                // transactions sharing a multiplexed connection must not hold each other up
+                transaction.mayWait = mayWait && message.getRequestID() == 0;
+
+                EventLog.record(EventLog.OPEN, transaction.getTransactionID(), 0, transaction.isReadOnly() ? 1 : 0);
+                Metrics.recordPhase(Metrics.OPEN, startTime);
+                if(openEvent != null) {
+                    openEvent.finish(transaction.getTransactionID(), transaction.isReadOnly());
+                }
+
+                return reply(message, transaction, OPEN_TRANSACTION, transaction.getTransactionID());
+
+            // =========================================================================================================
+            case CLOSE_TRANSACTION:
+            // =========================================================================================================
+                transaction = getTransaction(message);
+
+                if(transaction == null) {
+                    return reply(message, null, TRANSACTION_ABORTED, null);
+                }
+                return finishClose(message, transaction, commitAsync(transaction).join());
+
+            // =========================================================================================================
+            case CALL_PROCEDURE:
+            // =========================================================================================================
+                // run the whole transaction in the server, open, procedure and close
+                transaction = TransactionManager.openTransaction();
+                result = runProcedure(message, transaction);
+
+                if(result == null) {
+                    return reply(message, null, TRANSACTION_ABORTED, null);
+                }
+                return finishClose(message, transaction, commitAsync(transaction).join(), result);
+
+            // =========================================================================================================
+            case READ_REQUEST:
+            // =========================================================================================================
+                readEvent = FlightEvents.beginRead();
+                startTime = Metrics.startTimer();
+                transaction = getTransaction(message);
+
+                if(transaction == null || TransactionManager.isDoomed(transaction, false)) {
+                    return abortEarly(message, transaction);
+                }
+
+                // read request
+                accountNumber = (Integer) message.getContent();
+                try {
+                    balance = transaction.read(accountNumber);
+                } catch (SnapshotTooOldException ex) {
+                    return abortEarly(message, transaction, Metrics.SNAPSHOT_TOO_OLD);
+                }
+
+                EventLog.record(EventLog.READ, transaction.getTransactionID(), accountNumber, balance);
+                Metrics.recordPhase(Metrics.READ, startTime);
+                if(readEvent != null) {
+                    readEvent.finish(transaction.getTransactionID(), accountNumber, balance);
+                }
+
+                return reply(message, transaction, READ_REQUEST_RESPONSE, balance);
+
+            // =========================================================================================================
+            case WRITE_REQUEST:
+            // =========================================================================================================
+                writeEvent = FlightEvents.beginWrite();
+                startTime = Metrics.startTimer();
+                transaction = getTransaction(message);
+
+                if(transaction == null || transaction.isReadOnly() || TransactionManager.isDoomed(transaction, true)) {
+                    return abortEarly(message, transaction);
+                }
+
+                // write request
+                Object[] content = (Object[]) message.getContent();
+
+                // fetch account number and balance from the Message
+                accountNumber = (int) content[0];
+                balance = (int) content[1];
+
+                try {
+                    balance = transaction.write(accountNumber, balance);
+                } catch (SnapshotTooOldException ex) {
+                    return abortEarly(message, transaction, Metrics.SNAPSHOT_TOO_OLD);
+                }
+
+                EventLog.record(EventLog.WRITE, transaction.getTransactionID(), accountNumber, (int) content[1]);
+                Metrics.recordPhase(Metrics.WRITE, startTime);
+                if(writeEvent != null) {
+                    writeEvent.finish(transaction.getTransactionID(), accountNumber, (int) content[1]);
+                }
+
+                return reply(message, transaction, READ_REQUEST_RESPONSE, balance);
+
+            // =========================================================================================================
+            case MULTI_READ_REQUEST:
+            // =========================================================================================================
+                readEvent = FlightEvents.beginRead();
+                startTime = Metrics.startTimer();
+                transaction = getTransaction(message);
+
+                if(transaction == null || TransactionManager.isDoomed(transaction, false)) {
+                    return abortEarly(message, transaction);
+                }
+
+                // read all accounts of the request at once
+                accountNumbers = (int[]) message.getContent();
+                try {
+                    balances = transaction.read(accountNumbers);
+                } catch (SnapshotTooOldException ex) {
+                    return abortEarly(message, transaction, Metrics.SNAPSHOT_TOO_OLD);
+                }
+
+                recordAll(EventLog.READ, transaction, accountNumbers, balances);
+                Metrics.recordPhase(Metrics.READ, startTime);
+                if(readEvent != null) {
+                    for(int index = 0; index < accountNumbers.length; index++) {
+                        readEvent.finish(transaction.getTransactionID(), accountNumbers[index], balances[index]);
+                    }
+                }
+
+                return reply(message, transaction, MULTI_READ_RESPONSE, balances);
+
+            // =========================================================================================================
+            case MULTI_WRITE_REQUEST:
+            // =========================================================================================================
+                writeEvent = FlightEvents.beginWrite();
+                startTime = Metrics.startTimer();
+                transaction = getTransaction(message);
+
+                if(transaction == null || transaction.isReadOnly() || TransactionManager.isDoomed(transaction, true)) {
+                    return abortEarly(message, transaction);
+                }
+
+                // write all accounts of the request at once
+                Object[] multiContent = (Object[]) message.getContent();
+                accountNumbers = (int[]) multiContent[0];
+                try {
+                    balances = transaction.write(accountNumbers, (int[]) multiContent[1]);
+                } catch (SnapshotTooOldException ex) {
+                    return abortEarly(message, transaction, Metrics.SNAPSHOT_TOO_OLD);
+                }
+
+                recordAll(EventLog.WRITE, transaction, accountNumbers, (int[]) multiContent[1]);
+                Metrics.recordPhase(Metrics.WRITE, startTime);
+                if(writeEvent != null) {
+                    for(int index = 0; index < accountNumbers.length; index++) {
+                        writeEvent.finish(transaction.getTransactionID(), accountNumbers[index],
+                                ((int[]) multiContent[1])[index]);
+                    }
+                }
+
+                return reply(message, transaction, MULTI_READ_RESPONSE, balances);
+
+            // =========================================================================================================
+            case TOTAL_BALANCE_REQUEST:
+            // =========================================================================================================
+                // the running total, no account is read
+                return reply(message, null, TOTAL_BALANCE_RESPONSE, TransactionServer.accountManager.getTotalBalance());
+
+            // =========================================================================================================
+            case STATS_REQUEST:
+            // =========================================================================================================
+                return reply(message, null, STATS_RESPONSE, Metrics.snapshot());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the transaction a request belongs to: the transaction named by its tag on a multiplexed connection,
+     * the current transaction otherwise
+     *
+     * @param message the request
+     *
+     * @return the transaction
+     */
+    public Transaction getTransaction(Message message) {
+        if(message.getRequestID() != 0) {
+            return taggedTransactions.get(message.getTransactionID());
+        }
+        return transaction;
+    }
+
+    /**
+     * Runs the stored procedure named by a CALL_PROCEDURE request in a freshly opened transaction. A transaction
+     * that can't be committed, because the procedure is unknown or gave up, is abandoned right away.
+     *
+     * @param message the CALL_PROCEDURE request, its content is the procedure name and the int[] arguments
+     * @param transaction the open transaction to run the procedure in
+     *
+     * @return the result of the procedure, or null if the transaction was abandoned
+     */
+    public Integer runProcedure(Message message, Transaction transaction) {
+        Object[] content = (Object[]) message.getContent();
+        String procedureName = (String) content[0];
+        int[] arguments = (int[]) content[1];
+        StoredProcedure procedure = ProcedureRegistry.lookup(procedureName);
+
+        transaction.mayWait = mayWait && message.getRequestID() == 0;
+        EventLog.record(EventLog.CALL_PROCEDURE, transaction.getTransactionID(), 0, arguments.length);
+
+        if(procedure == null) {
+            System.out.println("[TransactionRequestHandler.runProcedure] Unknown procedure " + procedureName);
+            EventLog.record(EventLog.ABORT, transaction.getTransactionID(), 0, 0);
+            countAborted(transaction, Metrics.PROCEDURE_FAILED);
+            TransactionManager.abandonTransaction(transaction);
+            return null;
+        }
+
+        try {
+            return procedure.execute(transaction, arguments);
+        } catch (TransactionAbortedException ex) {
+            EventLog.record(EventLog.ABORT, transaction.getTransactionID(), 0, 0);
+            countAborted(transaction, Metrics.PROCEDURE_FAILED);
+            TransactionManager.abandonTransaction(transaction);
+            return null;
+        } catch (SnapshotTooOldException ex) {
+            EventLog.record(EventLog.ABORT, transaction.getTransactionID(), 0, 0);
+            countAborted(transaction, Metrics.SNAPSHOT_TOO_OLD);
+            TransactionManager.abandonTransaction(transaction);
+            return null;
+        }
+    }
+
+    /**
+     * Starts closing a transaction: validates it and, if the validation is successful, writes it.
+     * The transaction is detached from this handler, so abandon leaves it to its commit.
+     * The returned future may be completed on another thread, e.g. by the group commit sequencer, so the caller
+     * should hand the result back to its own thread before calling finishClose.
+     *
+     * @param transaction the transaction to close
+     *
+     * @return a future completed with true if the transaction is committed, false if it is aborted
+     */
+    public CompletableFuture<Boolean> commitAsync(Transaction transaction) {
+        transaction.closeStartTime = Metrics.startTimer();
+        detach(transaction);
+        return TransactionManager.commitTransactionAsync(transaction);
+    }
+
+    /**
+     * Gives up a transaction before its close: a read-only transaction that tried to write, or a doomed one.
+     * The client is told the transaction aborted, and can open the next one on the same connection.
+     *
+     * @param message the read or write request
+     * @param transaction the transaction, null if it was given up already
+     *
+     * @return the reply, TRANSACTION_ABORTED
+     */
+    Message abortEarly(Message message, Transaction transaction) {
+        // a transaction that isn't doomed is read-only and tried to write
+        return abortEarly(message, transaction, transaction != null && transaction.isDoomed()
+                ? Metrics.DOOMED : Metrics.READ_ONLY_WRITE);
+    }
+
+    /**
+     * Gives up a transaction before its close like abortEarly, for the given reason
+     *
+     * @param message the read or write request
+     * @param transaction the transaction, null if it was given up already
+     * @param reason the reason of the abort, as defined in Metrics
+     *
+     * @return the reply, TRANSACTION_ABORTED
+     */
+    Message abortEarly(Message message, Transaction transaction, int reason) {
+        Message reply = reply(message, transaction, TRANSACTION_ABORTED, null);
+
+        if(transaction == null) {
+            return reply;
+        }
+
+        EventLog.record(EventLog.EARLY_ABORT, transaction.getTransactionID(), 0, reason == Metrics.DOOMED ? 1 : 0);
+        countAborted(transaction, reason);
+
+        detach(transaction);
+        TransactionManager.abandonTransaction(transaction);
+        return reply;
+    }
+
+    // records an event for every account of a multi-account request, skipping the loop if the events aren't recorded
+    private static void recordAll(int type, Transaction transaction, int[] accountNumbers, int[] balances) {
+        if(EventLog.isEnabled(EventLog.DEBUG)) {
+            for(int index = 0; index < accountNumbers.length; index++) {
+                EventLog.record(type, transaction.getTransactionID(), accountNumbers[index], balances[index]);
+            }
+        }
+    }
+
+    // counts an abort in the metrics and records it as a flight recorder event, with the account that caused it
+    private static void countAborted(Transaction transaction, int reason) {
+        Metrics.countAborted(reason);
+        FlightEvents.abort(transaction.getTransactionID(), Metrics.ABORT_REASON_NAMES[reason],
+                transaction.conflictingAccount);
+    }
+
+    // removes a transaction from this handler, so abandon no longer gives it up
+    private void detach(Transaction transaction) {
+        if(this.transaction == transaction) {
+            this.transaction = null;
+        } else {
+            taggedTransactions.remove(transaction.getTransactionID());
+        }
+    }
+
+    /**
+     * Finishes closing a transaction once its commit is decided: logs the outcome, releases the transaction and
+     * returns the reply for the client.
+     *
+     * @param message the CLOSE_TRANSACTION request
+     * @param transaction the transaction being closed
+     * @param committed whether the transaction is committed
+     *
+     * @return the reply, TRANSACTION_COMMITTED or TRANSACTION_ABORTED
+     */
+    public Message finishClose(Message message, Transaction transaction, boolean committed) {
+        return finishClose(message, transaction, committed, null);
+    }
+
+    /**
+     * Finishes closing a transaction like finishClose, with the reply carrying the result of a stored procedure
+     *
+     * @param message the CLOSE_TRANSACTION or CALL_PROCEDURE request
+     * @param transaction the transaction being closed
+     * @param committed whether the transaction is committed
+     * @param result content of the reply
+     *
+     * @return the reply, TRANSACTION_COMMITTED or TRANSACTION_ABORTED
+     */
+    public Message finishClose(Message message, Transaction transaction, boolean committed, Integer result) {
+        Message reply = reply(message, transaction, committed ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED, result);
+
+        Metrics.recordPhase(Metrics.COMMIT, transaction.closeStartTime);
+
+        if(committed) {
+            EventLog.record(EventLog.COMMIT, transaction.getTransactionID(), 0, transaction.getTransactionNumber());
+            Metrics.countCommitted();
+        } else {
+            EventLog.record(EventLog.ABORT, transaction.getTransactionID(), 0, 0);
+            countAborted(transaction, Metrics.VALIDATION_FAILED);
+        }
+
+        // the transaction is done, hand it back for reuse
+        TransactionManager.releaseTransaction(transaction);
+
+        return reply;
+    }
+
+    /**
+     * Gives up all transactions the client opened but didn't close, because the client went away. Transactions
+     * that are being committed are no longer held by the handler and are left to their commit.
+     */
+    public void abandon() {
+        if(transaction != null) {
+            countAborted(transaction, Metrics.ABANDONED);
+            TransactionManager.abandonTransaction(transaction);
+            transaction = null;
+        }
+
+        for(Transaction taggedTransaction : taggedTransactions.values()) {
+            countAborted(taggedTransaction, Metrics.ABANDONED);
+            TransactionManager.abandonTransaction(taggedTransaction);
+        }
+        taggedTransactions.clear();
+    }
+
+    /**
+     * Builds the reply to a request, tagged like the request on a multiplexed connection
+     *
+     * @param message the request
+     * @param transaction the transaction the request belongs to, null if there is none
+     * @param type type of the reply
+     * @param content content of the reply
+     *
+     * @return the reply
+     */
+    public Message reply(Message message, Transaction transaction, int type, Object content) {
+        if(message.getRequestID() != 0) {
+            return new Message(type, content, transaction != null ? transaction.getTransactionID() : 0, message.getRequestID());
+        }
+        return new Message(type, content);
+    }
+}
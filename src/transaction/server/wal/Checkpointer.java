@@ -0,0 +1,190 @@
+package transaction.server.wal;
+
+import transaction.server.account.AccountManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * class [Checkpointer] periodically writes a fuzzy checkpoint of all accounts next to the write-ahead log, so
+ * recovery only has to replay the log written since. Commits keep running while a checkpoint is taken:
+ *
+ *   1. the log is rolled over to a new segment while holding the commit lock, so every record in the older
+ *      segments is already applied to the accounts, or is applied under the latch of its accounts
+ *   2. all accounts are read, each under its latch, and written to a temporary file
+ *   3. the file is forced and renamed into place, and the older checkpoints and segments are deleted
+ *
+ * A checkpoint therefore holds every record of the older segments, and possibly some records of the newer ones.
+ * Replaying all records from its segment on gives the right balances, as records hold absolute balances.
+ *
+ * The checkpoint file holds a header of little-endian ints: magic "TXC1", number of accounts, index of the first
+ * segment to replay and the highest transaction number of the accounts, followed by a (balance, version) pair
+ * per account.
+ *
+ * @author surya and dheeraj
+ */
+public class Checkpointer extends Thread {
+
+    // "TXC1" read as little-endian int
+    public static final int CHECKPOINT_MAGIC = 0x31435854;
+
+    // size of the header and of an account in a checkpoint file
+    public static final int HEADER_SIZE = 16;
+    public static final int ACCOUNT_SIZE = 8;
+
+    // size of the buffer accounts are written through
+    static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    final WriteAheadLog writeAheadLog;
+    final AccountManager accountManager;
+
+    // lock ordering the commits, held while the log is rolled over
+    final Object commitLock;
+
+    // time between two checkpoints, in milliseconds
+    final long checkpointInterval;
+
+    /**
+     * Custom constructor
+     *
+     * @param writeAheadLog the log the checkpoints cover
+     * @param accountManager the accounts to checkpoint
+     * @param commitLock lock ordering the commits
+     * @param checkpointInterval time between two checkpoints, in milliseconds
+     */
+    public Checkpointer(WriteAheadLog writeAheadLog, AccountManager accountManager, Object commitLock, long checkpointInterval) {
+        super("Checkpointer");
+        this.writeAheadLog = writeAheadLog;
+        this.accountManager = accountManager;
+        this.commitLock = commitLock;
+        this.checkpointInterval = checkpointInterval;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                Thread.sleep(checkpointInterval);
+            } catch (InterruptedException ex) {
+                System.out.println("[Checkpointer.run] Interrupted, stopping checkpoints");
+                return;
+            }
+
+            try {
+                checkpoint();
+            } catch (IOException ex) {
+                System.out.println("[Checkpointer.run] Checkpoint failed, the log is kept");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Takes a checkpoint
+     *
+     * @throws IOException if the checkpoint can't be written
+     */
+    public void checkpoint() throws IOException {
+        long startTime = System.currentTimeMillis();
+        int numberOfAccounts = accountManager.getNumberOfAccounts();
+        int firstSegment;
+        int lastTransactionNumber = 0;
+        long versionAndBalance;
+        File directory = writeAheadLog.directory;
+        File temporaryFile = new File(directory, "checkpoint.tmp");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        synchronized (commitLock) {
+            firstSegment = writeAheadLog.rollSegment();
+        }
+
+        try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            // the header is written last, once the highest transaction number is known
+            channel.position(HEADER_SIZE);
+
+            for(int account = 1; account <= numberOfAccounts; account++) {
+                versionAndBalance = accountManager.readWithVersion(account);
+                lastTransactionNumber = Math.max(lastTransactionNumber, (int) (versionAndBalance >>> 32));
+
+                buffer.putInt((int) versionAndBalance).putInt((int) (versionAndBalance >>> 32));
+                if(!buffer.hasRemaining()) {
+                    writeFully(channel, buffer);
+                }
+            }
+            writeFully(channel, buffer);
+
+            buffer.putInt(CHECKPOINT_MAGIC).putInt(numberOfAccounts).putInt(firstSegment).putInt(lastTransactionNumber);
+            channel.position(0);
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporaryFile.toPath(), checkpointFile(directory, firstSegment).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // older checkpoints and the segments they needed are covered by the new checkpoint
+        for(int index : checkpointIndices(directory)) {
+            if(index < firstSegment) {
+                checkpointFile(directory, index).delete();
+            }
+        }
+        writeAheadLog.deleteSegmentsBefore(firstSegment);
+
+        System.out.println("[Checkpointer.checkpoint] Checkpoint of " + numberOfAccounts + " accounts up to segment #"
+                + firstSegment + " taken in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // writes the content of the buffer and clears it
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the file of the checkpoint whose replay starts at the given segment
+     *
+     * @param directory directory holding the log
+     * @param firstSegment index of the first segment to replay
+     *
+     * @return the file
+     */
+    public static File checkpointFile(File directory, int firstSegment) {
+        return new File(directory, String.format("checkpoint-%08d.snap", firstSegment));
+    }
+
+    /**
+     * Returns the first segments to replay of the checkpoints in a directory
+     *
+     * @param directory directory holding the log
+     *
+     * @return the indices of the checkpoints, in no particular order
+     */
+    public static int[] checkpointIndices(File directory) {
+        String[] names = directory.list((dir, name) -> name.startsWith("checkpoint-") && name.endsWith(".snap"));
+        int[] indices = new int[names == null ? 0 : names.length];
+        int numberOfIndices = 0;
+
+        for(int index = 0; index < indices.length; index++) {
+            try {
+                indices[numberOfIndices] = Integer.parseInt(names[index].substring(11, names[index].length() - 5));
+                numberOfIndices++;
+            } catch (NumberFormatException ex) {
+                // not a checkpoint
+            }
+        }
+        return Arrays.copyOf(indices, numberOfIndices);
+    }
+}
@@ -0,0 +1,178 @@
+package transaction.server.wal;
+
+import transaction.server.account.AccountManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * class [Recovery] restores the accounts at startup: it loads the newest checkpoint through a memory-mapped read
+ * and replays the records of the write-ahead log written since. Replay stops at the first record that is
+ * incomplete or fails its checksum, i.e. at the end of what was durable when the server stopped.
+ *
+ * @author surya and dheeraj
+ */
+public class Recovery {
+
+    // largest part of a checkpoint mapped at once
+    static final int MAPPING_SIZE = 1 << 30;
+
+    final File directory;
+    final AccountManager accountManager;
+
+    // highest transaction number recovered
+    int lastTransactionNumber = 0;
+
+    /**
+     * Custom constructor
+     *
+     * @param directory directory holding the log and the checkpoints
+     * @param accountManager the accounts to restore, initialized with the initial balance
+     */
+    public Recovery(File directory, AccountManager accountManager) {
+        this.directory = directory;
+        this.accountManager = accountManager;
+    }
+
+    /**
+     * Restores the accounts and reports how long it took
+     *
+     * @return the highest transaction number recovered, transaction numbers continue after it
+     *
+     * @throws IOException if the checkpoint or the log can't be read
+     */
+    public int recover() throws IOException {
+        long startTime = System.currentTimeMillis();
+        long checkpointTime;
+        int firstSegment = 1;
+        int lastSegment = WriteAheadLog.lastSegmentIndex(directory);
+        int numberOfRecords = 0;
+        String checkpointReport = "no checkpoint";
+
+        for(int index : Checkpointer.checkpointIndices(directory)) {
+            firstSegment = Math.max(firstSegment, index);
+        }
+        if(Checkpointer.checkpointFile(directory, firstSegment).isFile()) {
+            loadCheckpoint(Checkpointer.checkpointFile(directory, firstSegment));
+            checkpointReport = "checkpoint loaded in " + (System.currentTimeMillis() - startTime) + " ms";
+        }
+        checkpointTime = System.currentTimeMillis();
+
+        for(int index = firstSegment; index <= lastSegment; index++) {
+            if(WriteAheadLog.segmentFile(directory, index).isFile()) {
+                numberOfRecords += replaySegment(WriteAheadLog.segmentFile(directory, index));
+            }
+        }
+
+        System.out.println("[Recovery.recover] Recovered " + accountManager.getNumberOfAccounts() + " accounts in "
+                + (System.currentTimeMillis() - startTime) + " ms: " + checkpointReport + ", " + numberOfRecords + " log records replayed in " + (System.currentTimeMillis() - checkpointTime)
+                + " ms, last transaction number #" + lastTransactionNumber);
+
+        return lastTransactionNumber;
+    }
+
+    /**
+     * Loads a checkpoint into the accounts
+     *
+     * @param checkpointFile the checkpoint
+     *
+     * @throws IOException if the checkpoint can't be read or doesn't match the accounts
+     */
+    void loadCheckpoint(File checkpointFile) throws IOException {
+        int numberOfAccounts = accountManager.getNumberOfAccounts();
+        int account = 1;
+        long position;
+        long size;
+        IntBuffer ints;
+
+        try (FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ)) {
+            ints = map(channel, 0, Checkpointer.HEADER_SIZE);
+
+            if(ints.get() != Checkpointer.CHECKPOINT_MAGIC) {
+                throw new IOException("[Recovery.loadCheckpoint] " + checkpointFile + " is not a checkpoint");
+            }
+            if(ints.get() != numberOfAccounts) {
+                throw new IOException("[Recovery.loadCheckpoint] " + checkpointFile + " doesn't hold "
+                        + numberOfAccounts + " accounts");
+            }
+            ints.get();
+            lastTransactionNumber = ints.get();
+
+            // the accounts are mapped in parts, a mapping can't exceed 2 GB
+            position = Checkpointer.HEADER_SIZE;
+            while(account <= numberOfAccounts) {
+                size = Math.min(MAPPING_SIZE, (long) (numberOfAccounts - account + 1) * Checkpointer.ACCOUNT_SIZE);
+                ints = map(channel, position, size);
+
+                while(ints.hasRemaining()) {
+                    accountManager.restore(account++, ints.get(), ints.get());
+                }
+                position += size;
+            }
+        }
+    }
+
+    /**
+     * Replays the records of a segment
+     *
+     * @param segmentFile the segment
+     *
+     * @return the number of records replayed
+     *
+     * @throws IOException if the segment can't be read
+     */
+    int replaySegment(File segmentFile) throws IOException {
+        CRC32 checksum = new CRC32();
+        MappedByteBuffer segment;
+        int numberOfRecords = 0;
+        int bodyLength;
+        int transactionNumber;
+        int numberOfAccounts;
+        int account;
+
+        try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+
+            while(segment.remaining() >= WriteAheadLog.RECORD_OVERHEAD) {
+                bodyLength = segment.getInt(segment.position());
+
+                if(bodyLength < 8 || bodyLength > segment.remaining() - 8) {
+                    break;
+                }
+
+                checksum.reset();
+                checksum.update(segment.slice().position(4).limit(4 + bodyLength));
+                if((int) checksum.getValue() != segment.getInt(segment.position() + 4 + bodyLength)) {
+                    System.out.println("[Recovery.replaySegment] Torn record in " + segmentFile + ", replay stops there");
+                    break;
+                }
+
+                segment.getInt();
+                transactionNumber = segment.getInt();
+                numberOfAccounts = segment.getInt();
+
+                for(int index = 0; index < numberOfAccounts; index++) {
+                    account = segment.getInt();
+                    accountManager.restore(account, segment.getInt(), transactionNumber);
+                }
+                segment.getInt();
+
+                lastTransactionNumber = Math.max(lastTransactionNumber, transactionNumber);
+                numberOfRecords++;
+            }
+        }
+        return numberOfRecords;
+    }
+
+    // maps a part of a file as little-endian ints
+    private static IntBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+}
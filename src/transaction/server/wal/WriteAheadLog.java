@@ -0,0 +1,386 @@
+package transaction.server.wal;
+
+import utils.IntIntMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * class [WriteAheadLog] makes committed write sets durable. Every committed transaction appends one record to
+ * the current segment, a preallocated file of fixed size, before its write set is applied to the accounts:
+ *
+ *   body length | transaction number | number of accounts | (account number, balance) pairs | CRC32 of the body
+ *
+ * all little-endian ints. A zero body length marks the end of the records in a segment, as segments are zero
+ * filled when they are created. Positions are logical: the number of bytes appended since the log was opened.
+ *
+ * How a record becomes durable depends on the durability mode:
+ *   ASYNC   appending only writes the record, a background thread forces the segment every flush interval;
+ *           commits don't wait for it
+ *   GROUP   appending only writes the record, a background thread forces the segment as soon as there is
+ *           something to force; all records appended while a force is running share the next one
+ *   SYNC    appending only writes the record, every commit forces the segment itself once it left the commit
+ *           critical section, unless another force covered its record meanwhile; the thread closing the
+ *           transaction waits for the force, on the NIO server the event loop
+ *
+ * In every mode, rolling over to the next segment forces the full one on the appending thread, inside the
+ * commit critical section, which happens once every segment size.
+ *
+ * @author surya and dheeraj
+ */
+public class WriteAheadLog {
+
+    // durability modes
+    public static final int ASYNC_DURABILITY = 1;
+    public static final int GROUP_DURABILITY = 2;
+    public static final int SYNC_DURABILITY = 3;
+
+    // size of a record without its pairs: length, transaction number, number of accounts and checksum
+    static final int RECORD_OVERHEAD = 16;
+
+    // chunk used to zero fill new segments
+    static final int PREALLOCATION_CHUNK = 1 << 16;
+
+    final int durabilityMode;
+    final File directory;
+    final int segmentSize;
+
+    // how often the log is forced in ASYNC mode, in milliseconds
+    final long flushInterval;
+
+    // segment records are appended to
+    FileChannel segment;
+    int segmentIndex;
+    int segmentPosition;
+
+    // logical positions: end of the last appended record, and end of the last record known to be durable
+    long appendedPosition = 0;
+    volatile long durablePosition = 0;
+
+    // commits waiting for their record to become durable, only touched while holding waiters
+    final List<Waiter> waiters = new ArrayList<>();
+
+    // staging buffer records are encoded into before they are written
+    ByteBuffer record = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    final CRC32 checksum = new CRC32();
+
+    /**
+     * Custom constructor, opens a fresh segment after the segments already in the directory
+     *
+     * @param directory directory holding the segments
+     * @param segmentSize size of a segment in bytes
+     * @param durabilityMode ASYNC_DURABILITY, GROUP_DURABILITY or SYNC_DURABILITY
+     * @param flushInterval how often the log is forced in ASYNC mode, in milliseconds
+     *
+     * @throws IOException if the first segment can't be created
+     */
+    public WriteAheadLog(File directory, int segmentSize, int durabilityMode, long flushInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.durabilityMode = durabilityMode;
+        this.flushInterval = flushInterval;
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("[WriteAheadLog.WriteAheadLog] Couldn't create directory " + directory);
+        }
+
+        segmentIndex = lastSegmentIndex(directory);
+        openNextSegment();
+
+        if(durabilityMode != SYNC_DURABILITY) {
+            Thread syncer = new Thread(this::runSyncer, "WriteAheadLog-syncer");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * Appends the record of a committed transaction. Records must be appended in the order their write sets are
+     * applied, so the caller holds whatever orders its commits.
+     *
+     * @param transactionNumber number of the committed transaction
+     * @param writeSet write set of the committed transaction
+     *
+     * @return the position of the end of the record, to wait for with awaitDurable
+     *
+     * @throws IOException if the record can't be written
+     */
+    public synchronized long append(int transactionNumber, IntIntMap writeSet) throws IOException {
+        int bodyLength = 8 + 8 * writeSet.size();
+        int recordLength = bodyLength + 8;
+
+        if(record.capacity() < recordLength) {
+            record = ByteBuffer.allocate(Integer.highestOneBit(recordLength) * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        record.clear();
+        record.putInt(bodyLength).putInt(transactionNumber).putInt(writeSet.size());
+        for(int index = 0; index < writeSet.size(); index++) {
+            record.putInt(writeSet.keyAt(index)).putInt(writeSet.valueAt(index));
+        }
+
+        checksum.reset();
+        checksum.update(record.array(), 4, bodyLength);
+        record.putInt((int) checksum.getValue());
+        record.flip();
+
+        // the zero length ending the records must fit behind every record
+        if(segmentPosition + recordLength + 4 > segmentSize) {
+            if(recordLength + 4 > segmentSize) {
+                throw new IOException("[WriteAheadLog.append] Record of " + recordLength + " bytes doesn't fit a segment");
+            }
+            segment.force(false);
+            segment.close();
+            openNextSegment();
+        }
+
+        while(record.hasRemaining()) {
+            segmentPosition += segment.write(record, segmentPosition);
+        }
+        appendedPosition += recordLength;
+
+        // in ASYNC mode the syncer wakes up every flush interval on its own
+        if(durabilityMode == GROUP_DURABILITY) {
+            notifyAll();
+        }
+        return appendedPosition;
+    }
+
+    /**
+     * Closes the current segment, after forcing it, and continues in a new one. Checkpoints roll the log over,
+     * so recovery can replay from the start of a segment.
+     *
+     * @return the index of the new segment
+     *
+     * @throws IOException if the new segment can't be created
+     */
+    public synchronized int rollSegment() throws IOException {
+        segment.force(false);
+        segment.close();
+        openNextSegment();
+        return segmentIndex;
+    }
+
+    /**
+     * Deletes the segments before the given one, which are covered by a checkpoint
+     *
+     * @param segmentIndex index of the first segment to keep
+     */
+    public void deleteSegmentsBefore(int segmentIndex) {
+        for(int index = segmentIndex - 1; index > 0 && segmentFile(directory, index).delete(); index--) {
+            // segments are deleted from the newest down, until one is missing
+        }
+    }
+
+    /**
+     * Returns a future completed once everything up to the given position is durable. In ASYNC mode commits
+     * don't wait for the log, so the future is completed right away. In SYNC mode the calling thread forces the
+     * log before returning, so it must not hold the commit lock.
+     *
+     * @param position a position returned by append
+     *
+     * @return the future
+     */
+    public CompletableFuture<Void> durable(long position) {
+        Waiter waiter;
+
+        if(durabilityMode == ASYNC_DURABILITY || position <= durablePosition) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if(durabilityMode == SYNC_DURABILITY) {
+            try {
+                force();
+            } catch (IOException ex) {
+                System.out.println("[WriteAheadLog.durable] Couldn't force the log, commits can't be made durable");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        waiter = new Waiter(position);
+        synchronized (waiters) {
+            waiters.add(waiter);
+        }
+
+        // the syncer may have passed the position while the waiter was being added
+        if(position <= durablePosition) {
+            completeWaiters(durablePosition);
+        }
+        return waiter.result;
+    }
+
+    /**
+     * Waits until everything up to the given position is durable
+     *
+     * @param position a position returned by append
+     */
+    public void awaitDurable(long position) {
+        durable(position).join();
+    }
+
+    /**
+     * Body of the syncer thread: forces the log whenever records were appended since the last force, right away
+     * in GROUP mode and every flush interval in ASYNC mode
+     */
+    void runSyncer() {
+        FileChannel channel;
+        long position;
+
+        while(true) {
+            try {
+                synchronized (this) {
+                    // appends don't notify in ASYNC mode, so the syncer checks again every flush interval
+                    if(durabilityMode == ASYNC_DURABILITY) {
+                        do {
+                            wait(flushInterval);
+                        } while(appendedPosition == durablePosition);
+                    }
+                    while(appendedPosition == durablePosition) {
+                        wait();
+                    }
+                    channel = segment;
+                    position = appendedPosition;
+                }
+            } catch (InterruptedException ex) {
+                System.out.println("[WriteAheadLog.runSyncer] Interrupted, stopping the syncer");
+                return;
+            }
+
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException ex) {
+                // the segment was rolled over meanwhile, which forced it
+            } catch (IOException ex) {
+                System.out.println("[WriteAheadLog.runSyncer] Couldn't force the log, commits can't be made durable");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+
+            durablePosition = position;
+            completeWaiters(position);
+        }
+    }
+
+    // forces everything appended so far on the calling thread, outside the lock appends take
+    private void force() throws IOException {
+        FileChannel channel;
+        long position;
+
+        synchronized (this) {
+            channel = segment;
+            position = appendedPosition;
+        }
+
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ex) {
+            // the segment was rolled over meanwhile, which forced it
+        }
+
+        // concurrent forces may finish out of order, the durable position only moves forward
+        synchronized (waiters) {
+            if(position > durablePosition) {
+                durablePosition = position;
+            }
+        }
+    }
+
+    // completes the waiters whose position is durable
+    private void completeWaiters(long position) {
+        List<Waiter> completed = new ArrayList<>();
+
+        synchronized (waiters) {
+            Iterator<Waiter> iterator = waiters.iterator();
+
+            while(iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+
+                if(waiter.position <= position) {
+                    iterator.remove();
+                    completed.add(waiter);
+                }
+            }
+        }
+
+        for(Waiter waiter : completed) {
+            waiter.result.complete(null);
+        }
+    }
+
+    // creates the next segment and zero fills it, so forcing it later doesn't have to update file metadata
+    private void openNextSegment() throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(PREALLOCATION_CHUNK);
+        int position = 0;
+
+        segmentIndex++;
+        segment = FileChannel.open(segmentFile(directory, segmentIndex).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        while(position < segmentSize) {
+            zeros.clear().limit(Math.min(PREALLOCATION_CHUNK, segmentSize - position));
+            position += segment.write(zeros, position);
+        }
+        segment.force(true);
+        segmentPosition = 0;
+    }
+
+    /**
+     * Returns the file of a segment
+     *
+     * @param directory directory holding the segments
+     * @param segmentIndex index of the segment
+     *
+     * @return the file
+     */
+    public static File segmentFile(File directory, int segmentIndex) {
+        return new File(directory, String.format("wal-%08d.log", segmentIndex));
+    }
+
+    /**
+     * Returns the highest index of the segments in a directory
+     *
+     * @param directory directory holding the segments
+     *
+     * @return the highest index, 0 if there are no segments
+     */
+    public static int lastSegmentIndex(File directory) {
+        String[] names = directory.list();
+        int lastIndex = 0;
+
+        if(names != null) {
+            for(String name : names) {
+                if(name.startsWith("wal-") && name.endsWith(".log")) {
+                    try {
+                        lastIndex = Math.max(lastIndex, Integer.parseInt(name.substring(4, name.length() - 4)));
+                    } catch (NumberFormatException ex) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        return lastIndex;
+    }
+
+    /**
+     * class [Waiter] is a commit waiting for its record to become durable
+     */
+    static class Waiter {
+        final long position;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Waiter(long position) {
+            this.position = position;
+        }
+    }
+}
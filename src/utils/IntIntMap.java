@@ -0,0 +1,189 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * class [IntIntMap] is a map from primitive int keys to primitive int values that never boxes. Entries are kept
+ * in insertion order in dense arrays, so they can be iterated with size(), keyAt(index) and valueAt(index); an
+ * open addressing hash table over the positions of the entries makes lookups O(1). Clearing keeps the capacity,
+ * so a reused map stops allocating once it has grown to its working size.
+ */
+public class IntIntMap {
+
+    // entries in insertion order
+    int[] keys;
+    int[] values;
+    int size = 0;
+
+    // open addressing table holding the position of an entry plus one, 0 marks an empty bucket
+    int[] table;
+
+    // default constructor
+    public IntIntMap() {
+        this(8);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param initialCapacity number of entries the map holds before it grows
+     */
+    public IntIntMap(int initialCapacity) {
+        int tableSize = Integer.highestOneBit(Math.max(initialCapacity, 4) * 2 - 1) * 2;
+
+        keys = new int[tableSize / 2];
+        values = new int[tableSize / 2];
+        table = new int[tableSize];
+    }
+
+    /**
+     * Associates a value with a key, replacing the value of an existing entry
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(int key, int value) {
+        int bucket = bucket(key);
+
+        while(table[bucket] != 0) {
+            if(keys[table[bucket] - 1] == key) {
+                values[table[bucket] - 1] = value;
+                return;
+            }
+            bucket = (bucket + 1) & (table.length - 1);
+        }
+
+        if(size == keys.length) {
+            grow();
+            put(key, value);
+            return;
+        }
+
+        keys[size] = key;
+        values[size] = value;
+        table[bucket] = ++size;
+    }
+
+    /**
+     * Returns the position of the entry with the given key
+     *
+     * @param key the key to look for
+     *
+     * @return the position of the entry, or -1 if there is no entry with that key
+     */
+    public int indexOf(int key) {
+        int bucket = bucket(key);
+
+        while(table[bucket] != 0) {
+            if(keys[table[bucket] - 1] == key) {
+                return table[bucket] - 1;
+            }
+            bucket = (bucket + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether there is an entry with the given key
+     *
+     * @param key the key to look for
+     *
+     * @return true if there is an entry with that key
+     */
+    public boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value associated with a key
+     *
+     * @param key the key to look for
+     * @param defaultValue the value to return if there is no entry with that key
+     *
+     * @return the value associated with the key, or defaultValue
+     */
+    public int get(int key, int defaultValue) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : defaultValue;
+    }
+
+    /**
+     * Returns the key of the entry at the given position, entries are positioned in insertion order
+     *
+     * @param index position of the entry, between 0 and size() - 1
+     *
+     * @return the key
+     */
+    public int keyAt(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Returns the value of the entry at the given position, entries are positioned in insertion order
+     *
+     * @param index position of the entry, between 0 and size() - 1
+     *
+     * @return the value
+     */
+    public int valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Returns the number of entries
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the map has no entries
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries, keeping the capacity
+     */
+    public void clear() {
+        if(size > 0) {
+            Arrays.fill(table, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the keys in insertion order
+     *
+     * @return a new array holding the keys
+     */
+    public int[] keysToArray() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    // maps a key onto its home bucket
+    private int bucket(int key) {
+        return (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(table.length));
+    }
+
+    // doubles the capacity and rehashes the entries
+    private void grow() {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        values = Arrays.copyOf(values, values.length * 2);
+        table = new int[table.length * 2];
+
+        for(int index = 0; index < size; index++) {
+            int bucket = bucket(keys[index]);
+
+            while(table[bucket] != 0) {
+                bucket = (bucket + 1) & (table.length - 1);
+            }
+            table[bucket] = index + 1;
+        }
+    }
+}
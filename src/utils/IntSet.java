@@ -0,0 +1,150 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * class [IntSet] is a set of primitive ints that never boxes. Members are kept in insertion order in a dense
+ * array, so they can be iterated with size() and get(index); an open addressing hash table over the positions
+ * of the members makes add and contains O(1). Clearing keeps the capacity, so a reused set stops allocating
+ * once it has grown to its working size.
+ */
+public class IntSet {
+
+    // members in insertion order
+    int[] members;
+    int size = 0;
+
+    // open addressing table holding the position of a member plus one, 0 marks an empty bucket
+    int[] table;
+
+    // default constructor
+    public IntSet() {
+        this(8);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param initialCapacity number of members the set holds before it grows
+     */
+    public IntSet(int initialCapacity) {
+        int tableSize = Integer.highestOneBit(Math.max(initialCapacity, 4) * 2 - 1) * 2;
+
+        members = new int[tableSize / 2];
+        table = new int[tableSize];
+    }
+
+    /**
+     * Adds a value to the set
+     *
+     * @param value the value to add
+     *
+     * @return true if the value was added, false if it already was a member
+     */
+    public boolean add(int value) {
+        int bucket = bucket(value);
+
+        while(table[bucket] != 0) {
+            if(members[table[bucket] - 1] == value) {
+                return false;
+            }
+            bucket = (bucket + 1) & (table.length - 1);
+        }
+
+        if(size == members.length) {
+            grow();
+            return add(value);
+        }
+
+        members[size++] = value;
+        table[bucket] = size;
+        return true;
+    }
+
+    /**
+     * Checks whether a value is a member of the set
+     *
+     * @param value the value to look for
+     *
+     * @return true if the value is a member
+     */
+    public boolean contains(int value) {
+        int bucket = bucket(value);
+
+        while(table[bucket] != 0) {
+            if(members[table[bucket] - 1] == value) {
+                return true;
+            }
+            bucket = (bucket + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the member at the given position, members are positioned in insertion order
+     *
+     * @param index position of the member, between 0 and size() - 1
+     *
+     * @return the member
+     */
+    public int get(int index) {
+        return members[index];
+    }
+
+    /**
+     * Returns the number of members
+     *
+     * @return the number of members
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the set has no members
+     *
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all members, keeping the capacity
+     */
+    public void clear() {
+        if(size > 0) {
+            Arrays.fill(table, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the members in insertion order
+     *
+     * @return a new array holding the members
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(members, size);
+    }
+
+    // maps a value onto its home bucket
+    private int bucket(int value) {
+        return (value * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(table.length));
+    }
+
+    // doubles the capacity and rehashes the members
+    private void grow() {
+        members = Arrays.copyOf(members, members.length * 2);
+        table = new int[table.length * 2];
+
+        for(int index = 0; index < size; index++) {
+            int bucket = bucket(members[index]);
+
+            while(table[bucket] != 0) {
+                bucket = (bucket + 1) & (table.length - 1);
+            }
+            table[bucket] = index + 1;
+        }
+    }
+}